@@ -0,0 +1,63 @@
+package minus.android.support.view;
+
+/**
+ * Bytes held by a {@link ZoomViewHelper} and its {@link ZoomViewHelper.IZoomView}, by category.
+ * {@link ZoomViewHelper#trimTo(long)} releases the categories in {@link #TRIM_ORDER}.
+ */
+public class MemoryReport {
+
+    /**
+     * Bitmaps on screen, e.g. the decoded image or the rasters of vector content.
+     */
+    public static final int BITMAPS = 0;
+    /**
+     * Content that can be rendered again, e.g. decoded tiles and pages.
+     */
+    public static final int CACHES = 1;
+    /**
+     * The view's software drawing cache.
+     */
+    public static final int DRAWING_CACHE = 2;
+    /**
+     * Buffers kept for reuse that hold no content.
+     */
+    public static final int POOLED = 3;
+
+    static final int CATEGORY_COUNT = 4;
+
+    /**
+     * Cheapest to give up first.
+     */
+    public static final int[] TRIM_ORDER = {POOLED, DRAWING_CACHE, CACHES, BITMAPS};
+
+    private final long[] mBytes = new long[CATEGORY_COUNT];
+
+    public void add(int category, long bytes) {
+        mBytes[category] += bytes;
+    }
+
+    public long get(int category) {
+        return mBytes[category];
+    }
+
+    public long getTotal() {
+        long total = 0;
+        for (long bytes : mBytes) {
+            total += bytes;
+        }
+        return total;
+    }
+
+    public void clear() {
+        for (int i = 0; i < CATEGORY_COUNT; i++) {
+            mBytes[i] = 0;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MemoryReport{bitmaps=" + mBytes[BITMAPS] + ", caches=" + mBytes[CACHES]
+                + ", drawingCache=" + mBytes[DRAWING_CACHE] + ", pooled=" + mBytes[POOLED] + '}';
+    }
+
+}
@@ -0,0 +1,287 @@
+package minus.android.support.view;
+
+import android.graphics.Matrix;
+import android.graphics.RectF;
+
+/**
+ * Double precision model of what a {@link ZoomViewHelper} shows: the source point at the
+ * center of the view, the zoom scale on top of the base matrix and the rotation. Float
+ * matrices are derived from it on demand, so deep zoom levels on very large sources do not
+ * accumulate float rounding in the translation.
+ * <p>
+ * The draw matrix is {@code view = R(rotation) * scale * B * (source - center) + viewCenter},
+ * where B is the axis aligned base matrix (without its translation).
+ */
+public class Viewport {
+
+    // base matrix, axis aligned
+    private double mBaseScaleX = 1, mBaseScaleY = 1;
+    private double mBaseTransX, mBaseTransY;
+
+    private double mViewCenterX, mViewCenterY;
+
+    private double mCenterX, mCenterY;
+    private double mScale = 1;
+    private double mRotation;
+
+    private final float[] mValues = new float[9];
+
+    public Viewport() {
+    }
+
+    public Viewport(Viewport other) {
+        set(other);
+    }
+
+    public void set(Viewport other) {
+        mBaseScaleX = other.mBaseScaleX;
+        mBaseScaleY = other.mBaseScaleY;
+        mBaseTransX = other.mBaseTransX;
+        mBaseTransY = other.mBaseTransY;
+        mViewCenterX = other.mViewCenterX;
+        mViewCenterY = other.mViewCenterY;
+        mCenterX = other.mCenterX;
+        mCenterY = other.mCenterY;
+        mScale = other.mScale;
+        mRotation = other.mRotation;
+    }
+
+    /**
+     * Sets this to the state a fraction t of the way from start to end: the center moves and the
+     * rotation turns linearly, the scale changes linearly in log space so the zoom speed looks
+     * even. Base matrix and view size are taken from end, and t of 1 gives exactly end.
+     */
+    public void interpolate(Viewport start, Viewport end, double t) {
+        if (t >= 1) {
+            set(end);
+            return;
+        }
+        mBaseScaleX = end.mBaseScaleX;
+        mBaseScaleY = end.mBaseScaleY;
+        mBaseTransX = end.mBaseTransX;
+        mBaseTransY = end.mBaseTransY;
+        mViewCenterX = end.mViewCenterX;
+        mViewCenterY = end.mViewCenterY;
+        mCenterX = start.mCenterX + t * (end.mCenterX - start.mCenterX);
+        mCenterY = start.mCenterY + t * (end.mCenterY - start.mCenterY);
+        mScale = start.mScale * Math.pow(end.mScale / start.mScale, t);
+        // the short way round
+        double turn = (end.mRotation - start.mRotation) % 360;
+        if (turn > 180) {
+            turn -= 360;
+        } else if (turn < -180) {
+            turn += 360;
+        }
+        mRotation = start.mRotation + t * turn;
+    }
+
+    /**
+     * @return source x shown at the center of the view
+     */
+    public double getCenterX() {
+        return mCenterX;
+    }
+
+    /**
+     * @return source y shown at the center of the view
+     */
+    public double getCenterY() {
+        return mCenterY;
+    }
+
+    /**
+     * @return zoom scale relative to the base matrix
+     */
+    public double getScale() {
+        return mScale;
+    }
+
+    /**
+     * @return rotation in degrees
+     */
+    public double getRotation() {
+        return mRotation;
+    }
+
+    public double getBaseScaleX() {
+        return mBaseScaleX;
+    }
+
+    public double getBaseScaleY() {
+        return mBaseScaleY;
+    }
+
+    /**
+     * @return view pixels per source pixel along x, i.e. zoom scale times base scale
+     */
+    public double getDrawScale() {
+        return mScale * mBaseScaleX;
+    }
+
+    public void setState(double centerX, double centerY, double scale, double rotation) {
+        mCenterX = centerX;
+        mCenterY = centerY;
+        mScale = scale;
+        mRotation = rotation;
+    }
+
+    /**
+     * Takes the scale and translation of an axis aligned base matrix. Call {@link #reset()}
+     * afterwards, the current state is interpreted relative to the new base.
+     */
+    public void setBase(Matrix base) {
+        base.getValues(mValues);
+        mBaseScaleX = mValues[Matrix.MSCALE_X];
+        mBaseScaleY = mValues[Matrix.MSCALE_Y];
+        mBaseTransX = mValues[Matrix.MTRANS_X];
+        mBaseTransY = mValues[Matrix.MTRANS_Y];
+        if (0 == mBaseScaleX || 0 == mBaseScaleY) {
+            mBaseScaleX = mBaseScaleY = 1;
+        }
+    }
+
+    /**
+     * Moves the view center, keeping the derived draw matrix unchanged.
+     */
+    public void setViewSize(int width, int height) {
+        final double centerX = width / 2d;
+        final double centerY = height / 2d;
+        if (centerX != mViewCenterX || centerY != mViewCenterY) {
+            moveCenterBy(centerX - mViewCenterX, centerY - mViewCenterY);
+            mViewCenterX = centerX;
+            mViewCenterY = centerY;
+        }
+    }
+
+    /**
+     * Back to the base matrix alone, i.e. an identity supplementary matrix.
+     */
+    public void reset() {
+        mScale = 1;
+        mRotation = 0;
+        mCenterX = (mViewCenterX - mBaseTransX) / mBaseScaleX;
+        mCenterY = (mViewCenterY - mBaseTransY) / mBaseScaleY;
+    }
+
+    public void postTranslate(double dx, double dy) {
+        moveCenterBy(-dx, -dy);
+    }
+
+    public void postScale(double factor, double pivotX, double pivotY) {
+        post(factor, 0, pivotX, pivotY);
+    }
+
+    public void postRotate(double degrees, double pivotX, double pivotY) {
+        post(1, degrees, pivotX, pivotY);
+    }
+
+    /**
+     * Applies, in view space, a scale by factor and a rotation by degrees around the pivot.
+     */
+    private void post(double factor, double degrees, double pivotX, double pivotY) {
+        // where the current view center ends up, relative to where it is now
+        final double rad = Math.toRadians(degrees);
+        final double cos = Math.cos(rad), sin = Math.sin(rad);
+        final double ux = mViewCenterX - pivotX, uy = mViewCenterY - pivotY;
+        final double wx = pivotX + factor * (cos * ux - sin * uy) - mViewCenterX;
+        final double wy = pivotY + factor * (sin * ux + cos * uy) - mViewCenterY;
+
+        mScale *= factor;
+        mRotation += degrees;
+        moveCenterBy(-wx, -wy);
+    }
+
+    /**
+     * Shifts the source center by the source distance covered by the view space vector.
+     */
+    private void moveCenterBy(double viewDx, double viewDy) {
+        final double rad = Math.toRadians(mRotation);
+        final double cos = Math.cos(rad), sin = Math.sin(rad);
+        mCenterX += (cos * viewDx + sin * viewDy) / (mScale * mBaseScaleX);
+        mCenterY += (-sin * viewDx + cos * viewDy) / (mScale * mBaseScaleY);
+    }
+
+    /**
+     * Takes the state from a supplementary matrix, i.e. one that is concatenated after the base
+     * matrix. Only scale, rotation and translation are kept.
+     */
+    public void setSuppMatrix(Matrix supp) {
+        supp.getValues(mValues);
+        final double a = mValues[Matrix.MSCALE_X], b = mValues[Matrix.MSKEW_X];
+        final double c = mValues[Matrix.MSKEW_Y], d = mValues[Matrix.MSCALE_Y];
+        final double tx = mValues[Matrix.MTRANS_X], ty = mValues[Matrix.MTRANS_Y];
+        final double det = a * d - b * c;
+        if (0 == det) {
+            return;
+        }
+
+        // base space point that supp maps onto the view center
+        final double qx = (d * (mViewCenterX - tx) - b * (mViewCenterY - ty)) / det;
+        final double qy = (-c * (mViewCenterX - tx) + a * (mViewCenterY - ty)) / det;
+
+        mScale = Math.sqrt(a * a + c * c);
+        mRotation = Math.toDegrees(Math.atan2(c, a));
+        mCenterX = (qx - mBaseTransX) / mBaseScaleX;
+        mCenterY = (qy - mBaseTransY) / mBaseScaleY;
+    }
+
+    public void getSuppMatrix(Matrix out) {
+        final double rad = Math.toRadians(mRotation);
+        final double cos = Math.cos(rad) * mScale, sin = Math.sin(rad) * mScale;
+        final double qx = mBaseScaleX * mCenterX + mBaseTransX;
+        final double qy = mBaseScaleY * mCenterY + mBaseTransY;
+        setValues(out, cos, -sin, sin, cos,
+                mViewCenterX - (cos * qx - sin * qy),
+                mViewCenterY - (sin * qx + cos * qy));
+    }
+
+    public void getDrawMatrix(Matrix out) {
+        final double rad = Math.toRadians(mRotation);
+        final double cos = Math.cos(rad) * mScale, sin = Math.sin(rad) * mScale;
+        final double a = cos * mBaseScaleX, b = -sin * mBaseScaleY;
+        final double c = sin * mBaseScaleX, d = cos * mBaseScaleY;
+        setValues(out, a, b, c, d,
+                mViewCenterX - (a * mCenterX + b * mCenterY),
+                mViewCenterY - (c * mCenterX + d * mCenterY));
+    }
+
+    private void setValues(Matrix out, double a, double b, double c, double d,
+                           double tx, double ty) {
+        mValues[Matrix.MSCALE_X] = (float) a;
+        mValues[Matrix.MSKEW_X] = (float) b;
+        mValues[Matrix.MTRANS_X] = (float) tx;
+        mValues[Matrix.MSKEW_Y] = (float) c;
+        mValues[Matrix.MSCALE_Y] = (float) d;
+        mValues[Matrix.MTRANS_Y] = (float) ty;
+        mValues[Matrix.MPERSP_0] = 0;
+        mValues[Matrix.MPERSP_1] = 0;
+        mValues[Matrix.MPERSP_2] = 1;
+        out.setValues(mValues);
+    }
+
+    /**
+     * Maps a source rectangle to the bounds of its view space image.
+     *
+     * @param out receives left, top, right, bottom
+     */
+    public void mapRect(RectF src, double[] out) {
+        final double rad = Math.toRadians(mRotation);
+        final double cos = Math.cos(rad) * mScale, sin = Math.sin(rad) * mScale;
+        final double a = cos * mBaseScaleX, b = -sin * mBaseScaleY;
+        final double c = sin * mBaseScaleX, d = cos * mBaseScaleY;
+
+        out[0] = out[1] = Double.POSITIVE_INFINITY;
+        out[2] = out[3] = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < 4; i++) {
+            final double sx = ((i & 1) == 0 ? src.left : src.right) - mCenterX;
+            final double sy = ((i & 2) == 0 ? src.top : src.bottom) - mCenterY;
+            final double x = a * sx + b * sy + mViewCenterX;
+            final double y = c * sx + d * sy + mViewCenterY;
+            out[0] = Math.min(out[0], x);
+            out[1] = Math.min(out[1], y);
+            out[2] = Math.max(out[2], x);
+            out[3] = Math.max(out[3], y);
+        }
+    }
+
+}
@@ -22,8 +22,12 @@ import android.graphics.Matrix;
 import android.graphics.Matrix.ScaleToFit;
 import android.graphics.PointF;
 import android.graphics.RectF;
+import android.support.v4.view.NestedScrollingChildHelper;
+import android.support.v4.view.ViewCompat;
 import android.util.Log;
 import android.view.GestureDetector;
+import android.view.InputDevice;
+import android.view.KeyEvent;
 import android.view.MotionEvent;
 import android.view.View;
 import android.view.View.OnLongClickListener;
@@ -35,15 +39,21 @@ import android.widget.ImageView;
 import android.widget.OverScroller;
 
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import minus.android.support.view.gestures.OnGestureListener;
 import minus.android.support.view.gestures.VersionedGestureDetector;
+import minus.android.support.view.overlay.RegionIndex;
 
 import static android.view.MotionEvent.ACTION_CANCEL;
 import static android.view.MotionEvent.ACTION_DOWN;
 import static android.view.MotionEvent.ACTION_UP;
 
 public class ZoomViewHelper implements View.OnTouchListener,
+        View.OnGenericMotionListener,
+        View.OnKeyListener,
         OnGestureListener,
         ViewTreeObserver.OnGlobalLayoutListener {
 
@@ -57,6 +67,50 @@ public class ZoomViewHelper implements View.OnTouchListener,
         int getIntrinsicHeight();
     }
 
+    /**
+     * Optionally implemented by an {@link IZoomView} that holds shared resources. Called from
+     * {@link #cleanup()}.
+     */
+    public interface IReleasable {
+        void release();
+    }
+
+    /**
+     * Optionally implemented by an {@link IZoomView} that holds bitmaps, caches or pools, see
+     * {@link #getMemoryReport(MemoryReport)} and {@link #trimTo(long)}.
+     */
+    public interface IMemoryReporter {
+        /**
+         * Adds the bytes held, by {@link MemoryReport} category, to report.
+         */
+        void reportMemory(MemoryReport report);
+
+        /**
+         * Releases what can be rebuilt of category until at most bytes of it are held, as far
+         * as possible.
+         */
+        void trimMemory(int category, long bytes);
+    }
+
+    /**
+     * Told when the transform starts moving and when it has settled, so rendering can trade
+     * quality for frame time in between, e.g. by drawing bitmaps unfiltered, using coarser tiles
+     * or skipping overlays. Used by default when the {@link IZoomView} implements it, see
+     * {@link #setQualityPolicy(QualityPolicy)}.
+     */
+    public interface QualityPolicy {
+        /**
+         * A drag, pinch, fling, animation or wheel input started moving the transform.
+         */
+        void onTransformStarted();
+
+        /**
+         * Nothing has moved the transform for {@link #SETTLE_DELAY} ms. Called once per
+         * {@link #onTransformStarted()}.
+         */
+        void onTransformSettled();
+    }
+
     /**
      * Options for scaling the bounds of an image to the bounds of this view.
      */
@@ -121,6 +175,19 @@ public class ZoomViewHelper implements View.OnTouchListener,
     public static final float DEFAULT_MID_SCALE = 2.0f;
     public static final float DEFAULT_MIN_SCALE = 1.0f;
     public static final int DEFAULT_ZOOM_DURATION = 200;
+    /**
+     * Zoom factor of one mouse wheel notch or one +/- key press.
+     */
+    public static final float DEFAULT_WHEEL_ZOOM_STEP = 1.25f;
+    /**
+     * Part of the view an arrow key press pans by.
+     */
+    private static final float KEY_PAN_FRACTION = 0.1f;
+    /**
+     * Time in ms without movement after which the transform counts as settled. Bridges the
+     * gaps between wheel notches and between the end of a gesture and the animation it starts.
+     */
+    public static final int SETTLE_DELAY = 100;
 
     private static final String LOG_TAG = "ZoomViewHelper";
     private static final boolean DEBUG = false;
@@ -142,6 +209,13 @@ public class ZoomViewHelper implements View.OnTouchListener,
     private boolean mAllowParentInterceptOnEdge = true;
     private boolean mBlockParentIntercept = false;
 
+    // Nested scrolling, replaces the intercept toggling while there is a nested scrolling parent
+    private NestedScrollingChildHelper mNestedScrollingHelper;
+    private final int[] mNestedOffset = new int[2];
+    private final int[] mNestedConsumed = new int[2];
+    private float mNestedOffsetX, mNestedOffsetY;
+    private float mNestedRemainderX, mNestedRemainderY;
+
     private static void checkZoomLevels(float minZoom, float midZoom,
                                         float maxZoom) {
         if (minZoom >= midZoom) {
@@ -176,30 +250,84 @@ public class ZoomViewHelper implements View.OnTouchListener,
     private WeakReference<View> mView;
     private WeakReference<IZoomView> mZoomInterface;
 
-    // Gesture Detectors
+    // Gesture Detectors, in lazy mode borrowed from SharedDetectors on touch down
     private GestureDetector mGestureDetector;
     private minus.android.support.view.gestures.GestureDetector mScaleDragDetector;
+    private final boolean mLazy;
+    private GestureDetector.OnDoubleTapListener mDoubleTapListener;
 
     // These are set so we don't keep allocating them on the heap
     private final Matrix mBaseMatrix = new Matrix();
     private final Matrix mDrawMatrix = new Matrix();
-    private final Matrix mTempSuppMatrix = new Matrix();
-    private final Matrix mSuppMatrix = new Matrix();
     private final RectF mDisplayRect = new RectF();
-    private final float[] mMatrixValues = new float[9];
+    // View <-> source mapping, padding included, rebuilt when mMappedMatrix goes stale;
+    // created on first use like mRegions
+    private Matrix mMappedMatrix, mSourceToView, mViewToSource;
+    private int mMappedPaddingLeft, mMappedPaddingTop;
+    private boolean mMappingValid, mMappingInvertible;
+    // created on first use, most helpers in a grid never need them
+    private RegionIndex mRegions;
+    private final double[] mBounds = new double[4];
+
+    // Source of truth for the supplementary transform, the float matrices are derived from it
+    private final Viewport mViewport = new Viewport();
 
     private PointF mLastFocusCenter = new PointF();
 
+    // Wheel and key input, applied at most once per frame by mApplyPendingInput
+    private float mWheelZoomStep = DEFAULT_WHEEL_ZOOM_STEP;
+    private float mPendingScale = 1f, mPendingFocusX, mPendingFocusY;
+    private float mPendingDx, mPendingDy;
+    private boolean mPendingInputScheduled;
+    private final Runnable mApplyPendingInput = new Runnable() {
+        @Override
+        public void run() {
+            applyPendingInput();
+        }
+    };
+
+    // Quality policy, mTransforming is true between its started and settled calls
+    private QualityPolicy mQualityPolicy;
+    private boolean mGestureActive;
+    private boolean mTransforming;
+    private final Runnable mSettleCheck = new Runnable() {
+        @Override
+        public void run() {
+            if (mTransforming && !isTransformActive()) {
+                mTransforming = false;
+                if (null != mQualityPolicy) {
+                    mQualityPolicy.onTransformSettled();
+                }
+            }
+        }
+    };
+
+    // Transform requests from any thread, applied on the UI thread by mDrainCommands
+    private final ConcurrentLinkedQueue<Command> mCommands = new ConcurrentLinkedQueue<Command>();
+    private final AtomicBoolean mCommandsScheduled = new AtomicBoolean();
+    private final Runnable mDrainCommands = new Runnable() {
+        @Override
+        public void run() {
+            drainCommands();
+        }
+    };
+
     // Listeners
     private OnMatrixChangedListener mMatrixChangeListener;
+    private ArrayList<OnMatrixChangedListener> mMatrixChangeListeners;
     private OnPhotoTouchEvent mPhotoTouchListener;
     private OnPhotoTapListener mPhotoTapListener;
     private OnViewTapListener mViewTapListener;
+    private OnRegionTapListener mRegionTapListener;
     private OnLongClickListener mLongClickListener;
     private OnScaleChangeListener mScaleChangeListener;
 
     private int mIvTop, mIvRight, mIvBottom, mIvLeft;
     private FlingRunnable mCurrentFlingRunnable;
+    private AnimatedZoomRunnable mZoomAnimation;
+    // created by the first animated transform
+    private ViewportAnimation mViewportAnimation;
+    private Viewport mZoomTarget;
     private int mScrollEdge = EDGE_BOTH;
 
     private boolean mAutoZoomBackEnabled = true;
@@ -211,11 +339,30 @@ public class ZoomViewHelper implements View.OnTouchListener,
     }
 
     public ZoomViewHelper(View zoomView, IZoomView zoomInterface, boolean zoomable) {
+        this(zoomView, zoomInterface, zoomable, false);
+    }
+
+    /**
+     * @param lazy if true, no gesture detectors are built up front and the view's drawing cache
+     *             is left off. On touch down the helper borrows a set shared by all lazy helpers
+     *             with the same parent, which keeps dense grids of zoomable cells cheap. Only one
+     *             cell of a parent is zoomed at a time: a cell touched while another one's
+     *             gesture is still going on ignores that touch.
+     */
+    public ZoomViewHelper(View zoomView, IZoomView zoomInterface, boolean zoomable, boolean lazy) {
+        mLazy = lazy;
         mView = new WeakReference<View>(zoomView);
         mZoomInterface = new WeakReference<IZoomView>(zoomInterface);
 
-        zoomView.setDrawingCacheEnabled(true);
+        if (!lazy) {
+            zoomView.setDrawingCacheEnabled(true);
+        }
         zoomView.setOnTouchListener(this);
+        zoomView.setOnGenericMotionListener(this);
+        zoomView.setOnKeyListener(this);
+        if (zoomInterface instanceof QualityPolicy) {
+            mQualityPolicy = (QualityPolicy) zoomInterface;
+        }
 
         ViewTreeObserver observer = zoomView.getViewTreeObserver();
         if (null != observer)
@@ -227,36 +374,45 @@ public class ZoomViewHelper implements View.OnTouchListener,
         if (zoomView.isInEditMode()) {
             return;
         }
-        // Create Gesture Detectors...
-        mScaleDragDetector = VersionedGestureDetector.newInstance(
-                zoomView.getContext(), this);
-
-        mGestureDetector = new GestureDetector(zoomView.getContext(),
-                new GestureDetector.SimpleOnGestureListener() {
-
-                    // forward long click listener
-                    @Override
-                    public void onLongPress(MotionEvent e) {
-                        if (null != mLongClickListener) {
-                            mLongClickListener.onLongClick(getView());
+        if (!lazy) {
+            // Create Gesture Detectors...
+            mScaleDragDetector = VersionedGestureDetector.newInstance(
+                    zoomView.getContext(), this);
+
+            mGestureDetector = new GestureDetector(zoomView.getContext(),
+                    new GestureDetector.SimpleOnGestureListener() {
+
+                        // forward long click listener
+                        @Override
+                        public void onLongPress(MotionEvent e) {
+                            if (null != mLongClickListener) {
+                                mLongClickListener.onLongClick(getView());
+                            }
                         }
-                    }
-                });
+                    });
 
-        mGestureDetector.setOnDoubleTapListener(new DefaultOnDoubleTapListener(this));
+            mGestureDetector.setOnDoubleTapListener(getDoubleTapListener());
+        }
 
         // Finally, update the UI so that we're zoomable
         setZoomable(zoomable);
     }
 
     public void setOnDoubleTapListener(GestureDetector.OnDoubleTapListener newOnDoubleTapListener) {
-        if (newOnDoubleTapListener != null) {
-            this.mGestureDetector.setOnDoubleTapListener(newOnDoubleTapListener);
-        } else {
-            this.mGestureDetector.setOnDoubleTapListener(new DefaultOnDoubleTapListener(this));
+        mDoubleTapListener = newOnDoubleTapListener;
+        final View zoomView = null != mView ? mView.get() : null;
+        if (null != mGestureDetector && (!mLazy || SharedDetectors.isOwner(zoomView, this))) {
+            mGestureDetector.setOnDoubleTapListener(getDoubleTapListener());
         }
     }
 
+    private GestureDetector.OnDoubleTapListener getDoubleTapListener() {
+        if (null == mDoubleTapListener) {
+            mDoubleTapListener = new DefaultOnDoubleTapListener(this);
+        }
+        return mDoubleTapListener;
+    }
+
     public void setOnScaleChangeListener(OnScaleChangeListener onScaleChangeListener) {
         this.mScaleChangeListener = onScaleChangeListener;
     }
@@ -287,19 +443,47 @@ public class ZoomViewHelper implements View.OnTouchListener,
 
             // Remove the View's reference to this
             zoomView.setOnTouchListener(null);
+            zoomView.setOnGenericMotionListener(null);
+            zoomView.setOnKeyListener(null);
 
-            // make sure a pending fling runnable won't be run
+            // make sure no pending runnable keeps this helper, and with it the view, alive
             cancelFling();
+            cancelZoomAnimation(zoomView);
+            zoomView.removeCallbacks(mDrainCommands);
+            mCommandsScheduled.set(false);
+            zoomView.removeCallbacks(mApplyPendingInput);
+            mPendingInputScheduled = false;
+            cancelViewportAnimation();
+            zoomView.removeCallbacks(mSettleCheck);
+        }
+        mGestureActive = false;
+        if (mTransforming && null != mQualityPolicy) {
+            // restore full quality, the view may be shown again
+            mQualityPolicy.onTransformSettled();
+        }
+        mTransforming = false;
+
+        // Give back shared resources held by the adapter
+        IZoomView zoomInterface = asInterface();
+        if (zoomInterface instanceof IReleasable) {
+            ((IReleasable) zoomInterface).release();
         }
 
-        if (null != mGestureDetector) {
+        if (mLazy) {
+            SharedDetectors.release(zoomView, this);
+        } else if (null != mGestureDetector) {
             mGestureDetector.setOnDoubleTapListener(null);
         }
 
+        mCommands.clear();
+
         // Clear listeners too
         mMatrixChangeListener = null;
+        mMatrixChangeListeners = null;
         mPhotoTapListener = null;
         mViewTapListener = null;
+        mRegionTapListener = null;
+        mQualityPolicy = null;
 
         // Finally, clear View
         mView = null;
@@ -321,7 +505,8 @@ public class ZoomViewHelper implements View.OnTouchListener,
         if (!zoomView.hasDrawable())
             return false;
 
-        mSuppMatrix.set(finalMatrix);
+        updateViewportSize();
+        mViewport.setSuppMatrix(finalMatrix);
         setViewMatrix(getDrawMatrix());
         checkMatrixBounds();
 
@@ -329,12 +514,14 @@ public class ZoomViewHelper implements View.OnTouchListener,
     }
 
     public void setRotationTo(float degrees) {
-        mSuppMatrix.setRotate(degrees % 360);
+        updateViewportSize();
+        mViewport.reset();
+        mViewport.postRotate(degrees % 360, 0, 0);
         checkAndDisplayMatrix();
     }
 
     public void setRotationBy(float degrees) {
-        mSuppMatrix.postRotate(degrees % 360);
+        mViewport.postRotate(degrees % 360, 0, 0);
         checkAndDisplayMatrix();
     }
 
@@ -375,11 +562,14 @@ public class ZoomViewHelper implements View.OnTouchListener,
     }
 
     public float getScale() {
-        return getScale(mSuppMatrix);
+        return (float) mViewport.getScale();
     }
 
-    float getScale(Matrix m) {
-        return  (float) Math.sqrt((float) Math.pow(getValue(m, Matrix.MSCALE_X), 2) + (float) Math.pow(getValue(m, Matrix.MSKEW_Y), 2));
+    /**
+     * @return the double precision model behind the draw matrix. Treat it as read-only.
+     */
+    public Viewport getViewport() {
+        return mViewport;
     }
 
     public ScaleType getScaleType() {
@@ -437,7 +627,12 @@ public class ZoomViewHelper implements View.OnTouchListener,
             return;
         }
 
-        mSuppMatrix.postTranslate(dx, getCoordsOrientationY() * dy);
+        if (hasNestedScrollingParent()) {
+            dragNested(dx, dy);
+            return;
+        }
+
+        mViewport.postTranslate(dx, getCoordsOrientationY() * dy);
         checkAndDisplayMatrix();
 
         /**
@@ -465,6 +660,101 @@ public class ZoomViewHelper implements View.OnTouchListener,
 
     private int mAllowDragMinTouchPointCount = 0;
     private int mCurrentTouchPointCount = 0;
+    /**
+     * Offers the drag to the nested scrolling parent first, moves the image by what is left and
+     * passes what it couldn't move, at its edges, back to the parent.
+     */
+    private void dragNested(float dx, float dy) {
+        // scroll deltas run against the finger
+        mNestedConsumed[0] = mNestedConsumed[1] = 0;
+        mNestedOffset[0] = mNestedOffset[1] = 0;
+        if (mNestedScrollingHelper.dispatchNestedPreScroll(Math.round(-dx), Math.round(-dy),
+                mNestedConsumed, mNestedOffset)) {
+            // e.g. an app bar collapsing before the image moves
+            dx += mNestedConsumed[0];
+            dy += mNestedConsumed[1];
+            mNestedOffsetX += mNestedOffset[0];
+            mNestedOffsetY += mNestedOffset[1];
+        }
+
+        final IZoomView zoomInterface = asInterface();
+        final int orientationY = getCoordsOrientationY();
+        zoomInterface.getDisplayRect(mDisplayRect);
+        mViewport.mapRect(mDisplayRect, mBounds);
+        final double left = mBounds[0], top = mBounds[1];
+
+        mViewport.postTranslate(dx, orientationY * dy);
+        checkAndDisplayMatrix();
+
+        zoomInterface.getDisplayRect(mDisplayRect);
+        mViewport.mapRect(mDisplayRect, mBounds);
+        final float movedX = (float) (mBounds[0] - left);
+        final float movedY = (float) (mBounds[1] - top);
+
+        // keep the fractions for the next drag
+        mNestedRemainderX -= dx - movedX;
+        mNestedRemainderY -= dy - orientationY * movedY;
+        final int unconsumedX = (int) mNestedRemainderX;
+        final int unconsumedY = (int) mNestedRemainderY;
+        mNestedRemainderX -= unconsumedX;
+        mNestedRemainderY -= unconsumedY;
+        if (unconsumedX != 0 || unconsumedY != 0) {
+            mNestedOffset[0] = mNestedOffset[1] = 0;
+            mNestedScrollingHelper.dispatchNestedScroll(Math.round(-movedX),
+                    Math.round(-orientationY * movedY), unconsumedX, unconsumedY, mNestedOffset);
+            // the parent moved us, later touch positions are corrected by that much
+            mNestedOffsetX += mNestedOffset[0];
+            mNestedOffsetY += mNestedOffset[1];
+        }
+    }
+
+    /**
+     * Hands drags and flings the image can't take, at its edges, to a nested scrolling parent
+     * such as NestedScrollView or CoordinatorLayout, which may also take part of a drag before
+     * the image moves. The parent keeps receiving them for the whole gesture, instead of the
+     * intercept being toggled by {@link #setAllowParentInterceptOnEdge}. Parents that aren't
+     * nested scrolling parents, like ViewPager or RecyclerView, still get the edge intercept.
+     */
+    public void setNestedScrollingEnabled(boolean enabled) {
+        View zoomView = getView();
+        if (null == zoomView) {
+            return;
+        }
+        if (null == mNestedScrollingHelper) {
+            mNestedScrollingHelper = new NestedScrollingChildHelper(zoomView);
+        }
+        mNestedScrollingHelper.setNestedScrollingEnabled(enabled);
+    }
+
+    public boolean isNestedScrollingEnabled() {
+        return null != mNestedScrollingHelper && mNestedScrollingHelper.isNestedScrollingEnabled();
+    }
+
+    /**
+     * @return true if nested scrolling is enabled and the current gesture found a parent
+     */
+    private boolean hasNestedScrollingParent() {
+        return isNestedScrollingEnabled() && mNestedScrollingHelper.hasNestedScrollingParent();
+    }
+
+    /**
+     * @return whether the image can move along the dominant axis of a fling with that scroll
+     * velocity, i.e. isn't at the edge it would move towards
+     */
+    private boolean canScrollImage(float velocityX, float velocityY) {
+        final View zoomView = getView();
+        final IZoomView zoomInterface = asInterface();
+        if (null == zoomView || null == zoomInterface) {
+            return false;
+        }
+        zoomInterface.getDisplayRect(mDisplayRect);
+        mViewport.mapRect(mDisplayRect, mBounds);
+        if (Math.abs(velocityX) >= Math.abs(velocityY)) {
+            return velocityX > 0 ? mBounds[2] > getViewWidth(zoomView) + 0.5 : mBounds[0] < -0.5;
+        }
+        return velocityY > 0 ? mBounds[3] > getViewHeight(zoomView) + 0.5 : mBounds[1] < -0.5;
+    }
+
     public void setAllowDragMinTouchPointCount(int minPointCount) {
         mAllowDragMinTouchPointCount = minPointCount;
     }
@@ -478,6 +768,12 @@ public class ZoomViewHelper implements View.OnTouchListener,
                     "onFling. sX: " + startX + " sY: " + startY + " Vx: "
                             + velocityX + " Vy: " + velocityY);
         }
+        if (hasNestedScrollingParent()
+                && !mNestedScrollingHelper.dispatchNestedPreFling(velocityX, velocityY)) {
+            // the image doesn't fling itself, the parent may when it's at the edge
+            mNestedScrollingHelper.dispatchNestedFling(velocityX, velocityY,
+                    canScrollImage(velocityX, velocityY));
+        }
 //        View zoomView = getView();
 //        mCurrentFlingRunnable = new FlingRunnable(zoomView.getContext());
 //        mCurrentFlingRunnable.fling(getViewWidth(zoomView),
@@ -531,9 +827,7 @@ public class ZoomViewHelper implements View.OnTouchListener,
 
         if (getScale() < mOverMaxScale || scaleFactor < 1f) {
             if(mOverMinScale > 0) {
-                mTempSuppMatrix.set(mSuppMatrix);
-                mTempSuppMatrix.postScale(scaleFactor, scaleFactor, focusX, focusY);
-                if (getScale(mTempSuppMatrix) < mOverMinScale) {
+                if (mViewport.getScale() * scaleFactor < mOverMinScale) {
                     return;
                 }
             }
@@ -543,7 +837,7 @@ public class ZoomViewHelper implements View.OnTouchListener,
             }
             mLastFocusCenter.x = focusX;
             mLastFocusCenter.y = focusY;
-            mSuppMatrix.postScale(scaleFactor, scaleFactor, focusX, focusY);
+            mViewport.postScale(scaleFactor, focusX, focusY);
             checkAndDisplayMatrix();
         }
     }
@@ -561,6 +855,9 @@ public class ZoomViewHelper implements View.OnTouchListener,
         try {
 
             if (mZoomEnabled && v == mView.get() && hasDrawable(asInterface())) {
+                if (mLazy && action == ACTION_DOWN) {
+                    SharedDetectors.obtain(v).takeOver(this);
+                }
                 ViewParent parent = v.getParent();
                 switch (action) {
                     case ACTION_DOWN:
@@ -575,6 +872,15 @@ public class ZoomViewHelper implements View.OnTouchListener,
                         // If we're flinging, and the user presses down, cancel
                         // fling
                         cancelFling();
+                        cancelViewportAnimation();
+                        cancelZoomAnimation(v);
+
+                        if (isNestedScrollingEnabled()) {
+                            mNestedOffsetX = mNestedOffsetY = 0;
+                            mNestedRemainderX = mNestedRemainderY = 0;
+                            mNestedScrollingHelper.startNestedScroll(
+                                    ViewCompat.SCROLL_AXIS_HORIZONTAL | ViewCompat.SCROLL_AXIS_VERTICAL);
+                        }
                         break;
 
                     case ACTION_CANCEL:
@@ -586,7 +892,7 @@ public class ZoomViewHelper implements View.OnTouchListener,
                             if(mAutoZoomBackEnabled) {
                                 RectF rect = getDisplayRect();
                                 if (null != rect) {
-                                    v.post(new AnimatedZoomRunnable(getScale(), mMinScale,
+                                    startZoomAnimation(v, new AnimatedZoomRunnable(getScale(), mMinScale,
                                             rect.centerX(), rect.centerY()));
                                     handled = true;
                                 }
@@ -610,7 +916,7 @@ public class ZoomViewHelper implements View.OnTouchListener,
                                 focusCenter = null;
                             }
                             if (null != focusCenter) {
-                                v.post(new AnimatedZoomRunnable(getScale(), mMaxScale,
+                                startZoomAnimation(v, new AnimatedZoomRunnable(getScale(), mMaxScale,
                                         focusCenter.x, focusCenter.y));
                                 handled = true;
                             } else {
@@ -621,26 +927,48 @@ public class ZoomViewHelper implements View.OnTouchListener,
                         break;
                 }
 
+                // Positions as if the nested scrolling parent hadn't moved us
+                final boolean nested = isNestedScrollingEnabled();
+                MotionEvent detectorEvent = ev;
+                if (nested && (0 != mNestedOffsetX || 0 != mNestedOffsetY)) {
+                    detectorEvent = MotionEvent.obtain(ev);
+                    detectorEvent.offsetLocation(mNestedOffsetX, mNestedOffsetY);
+                }
+
                 // Try the Scale/Drag detector
                 if (null != mScaleDragDetector) {
                     boolean wasScaling = mScaleDragDetector.isScaling();
                     boolean wasDragging = mScaleDragDetector.isDragging();
 
-                    handled = mScaleDragDetector.onTouchEvent(ev);
+                    handled = mScaleDragDetector.onTouchEvent(detectorEvent);
 
                     boolean didntScale = !wasScaling && !mScaleDragDetector.isScaling();
                     boolean didntDrag = !wasDragging && !mScaleDragDetector.isDragging();
 
                     mBlockParentIntercept = didntScale && didntDrag;
+                    // the detector stays dragging after the finger lifts
+                    mGestureActive = action != ACTION_UP && action != ACTION_CANCEL
+                            && (mScaleDragDetector.isScaling() || mScaleDragDetector.isDragging());
+                    updateTransformState();
                 }
 
                 // Check to see if the user double tapped
-                if (null != mGestureDetector && mGestureDetector.onTouchEvent(ev)) {
+                if (null != mGestureDetector && mGestureDetector.onTouchEvent(detectorEvent)) {
                     handled = true;
                 }
 
+                if (detectorEvent != ev) {
+                    detectorEvent.recycle();
+                }
+                if (nested && (action == ACTION_UP || action == ACTION_CANCEL)) {
+                    mNestedScrollingHelper.stopNestedScroll();
+                }
+
             }
         } finally {
+            if (mLazy && (action == ACTION_UP || action == ACTION_CANCEL)) {
+                SharedDetectors.endTouch(v, this);
+            }
             if(action == MotionEvent.ACTION_UP || action == MotionEvent.ACTION_CANCEL) {
                 mCurrentTouchPointCount = 0;
             } else {
@@ -654,6 +982,196 @@ public class ZoomViewHelper implements View.OnTouchListener,
         return handled;
     }
 
+    /**
+     * Mouse wheel zooms around the pointer and horizontal scrolling pans. Events arriving faster
+     * than the display refreshes are added up and applied once per frame. Touchpad pinches
+     * arrive as two finger touches and go through {@link #onTouch} instead.
+     */
+    @Override
+    public boolean onGenericMotion(View v, MotionEvent ev) {
+        if (!mZoomEnabled || v != mView.get() || !hasDrawable(asInterface())
+                || (ev.getSource() & InputDevice.SOURCE_CLASS_POINTER) == 0
+                || ev.getActionMasked() != MotionEvent.ACTION_SCROLL) {
+            return false;
+        }
+        final float vscroll = ev.getAxisValue(MotionEvent.AXIS_VSCROLL);
+        final float hscroll = ev.getAxisValue(MotionEvent.AXIS_HSCROLL);
+        if (0 == vscroll && 0 == hscroll) {
+            return false;
+        }
+        if (0 != vscroll) {
+            // wheel up zooms in
+            mPendingScale *= (float) Math.pow(mWheelZoomStep, vscroll);
+            mPendingFocusX = ev.getX();
+            mPendingFocusY = ev.getY();
+        }
+        if (0 != hscroll) {
+            mPendingDx -= hscroll * getViewWidth(v) * KEY_PAN_FRACTION;
+        }
+        schedulePendingInput(v);
+        return true;
+    }
+
+    /**
+     * +/- and the zoom keys zoom around the view center, arrow keys pan while there is image
+     * left in that direction. The view has to be focusable to get key events.
+     */
+    @Override
+    public boolean onKey(View v, int keyCode, KeyEvent event) {
+        if (!mZoomEnabled || v != mView.get() || !hasDrawable(asInterface())) {
+            return false;
+        }
+        final boolean down = event.getAction() == KeyEvent.ACTION_DOWN;
+        switch (keyCode) {
+            case KeyEvent.KEYCODE_PLUS:
+            case KeyEvent.KEYCODE_EQUALS:
+            case KeyEvent.KEYCODE_NUMPAD_ADD:
+            case KeyEvent.KEYCODE_ZOOM_IN:
+                if (down) {
+                    queueKeyZoom(v, mWheelZoomStep);
+                }
+                return true;
+            case KeyEvent.KEYCODE_MINUS:
+            case KeyEvent.KEYCODE_NUMPAD_SUBTRACT:
+            case KeyEvent.KEYCODE_ZOOM_OUT:
+                if (down) {
+                    queueKeyZoom(v, 1f / mWheelZoomStep);
+                }
+                return true;
+            case KeyEvent.KEYCODE_DPAD_LEFT:
+                return queueKeyPan(v, down, -1, 0);
+            case KeyEvent.KEYCODE_DPAD_RIGHT:
+                return queueKeyPan(v, down, 1, 0);
+            case KeyEvent.KEYCODE_DPAD_UP:
+                return queueKeyPan(v, down, 0, -1);
+            case KeyEvent.KEYCODE_DPAD_DOWN:
+                return queueKeyPan(v, down, 0, 1);
+        }
+        return false;
+    }
+
+    public void setWheelZoomStep(float step) {
+        if (step <= 1f)
+            throw new IllegalArgumentException("step must be greater than 1");
+        mWheelZoomStep = step;
+    }
+
+    private void queueKeyZoom(View v, float factor) {
+        mPendingScale *= factor;
+        mPendingFocusX = v.getWidth() / 2f;
+        mPendingFocusY = v.getHeight() / 2f;
+        schedulePendingInput(v);
+    }
+
+    /**
+     * @param directionX, directionY which part of the image to bring into view, e.g. 1, 0 for
+     *                    what is right of the view
+     * @return false if there is nothing more that way, so focus navigation can take the key
+     */
+    private boolean queueKeyPan(View v, boolean down, int directionX, int directionY) {
+        if (!canScrollImage(directionX, directionY)) {
+            return false;
+        }
+        if (down) {
+            mPendingDx -= directionX * getViewWidth(v) * KEY_PAN_FRACTION;
+            mPendingDy -= directionY * getViewHeight(v) * KEY_PAN_FRACTION;
+            schedulePendingInput(v);
+        }
+        return true;
+    }
+
+    private void schedulePendingInput(View v) {
+        if (!mPendingInputScheduled) {
+            mPendingInputScheduled = true;
+            Compat.postOnAnimation(v, mApplyPendingInput);
+            updateTransformState();
+        }
+    }
+
+    /**
+     * Applies the wheel and key input since the last frame as one scale and one translation.
+     */
+    private void applyPendingInput() {
+        mPendingInputScheduled = false;
+        final float scaleFactor = mPendingScale;
+        final float dx = mPendingDx, dy = mPendingDy;
+        mPendingScale = 1f;
+        mPendingDx = mPendingDy = 0;
+        updateTransformState();
+        if (!hasDrawable(asInterface())) {
+            return;
+        }
+
+        if (1f != scaleFactor) {
+            // stay within the limits, there is no finger lift to zoom back after
+            final float scale = getScale();
+            final float target = Math.max(mMinScale, Math.min(mMaxScale, scale * scaleFactor));
+            if (target != scale) {
+                onScale(target / scale, mPendingFocusX, mPendingFocusY);
+            }
+        }
+        if (0 != dx || 0 != dy) {
+            cancelFling();
+            cancelViewportAnimation();
+            mViewport.postTranslate(dx, dy);
+            checkAndDisplayMatrix();
+        }
+    }
+
+    /**
+     * @param policy null to not be told, replaces the {@link IZoomView} if it is a policy itself
+     */
+    public void setQualityPolicy(QualityPolicy policy) {
+        if (mTransforming && null != mQualityPolicy) {
+            // don't leave the old policy at reduced quality
+            mQualityPolicy.onTransformSettled();
+        }
+        mTransforming = false;
+        mQualityPolicy = policy;
+        updateTransformState();
+    }
+
+    public QualityPolicy getQualityPolicy() {
+        return mQualityPolicy;
+    }
+
+    /**
+     * @return true between {@link QualityPolicy#onTransformStarted()} and
+     * {@link QualityPolicy#onTransformSettled()}
+     */
+    public boolean isTransforming() {
+        return mTransforming;
+    }
+
+    private boolean isTransformActive() {
+        return mGestureActive || mPendingInputScheduled || null != mZoomAnimation
+                || (null != mViewportAnimation && mViewportAnimation.isRunning())
+                || (null != mCurrentFlingRunnable && !mCurrentFlingRunnable.isFinished());
+    }
+
+    /**
+     * Calls the quality policy when the transform starts moving, and schedules the settle check
+     * when it stopped. Called whenever a gesture, fling, animation or input batch starts or ends.
+     */
+    private void updateTransformState() {
+        if (null == mQualityPolicy) {
+            return;
+        }
+        final View zoomView = null != mView ? mView.get() : null;
+        if (isTransformActive()) {
+            if (null != zoomView) {
+                zoomView.removeCallbacks(mSettleCheck);
+            }
+            if (!mTransforming) {
+                mTransforming = true;
+                mQualityPolicy.onTransformStarted();
+            }
+        } else if (mTransforming && null != zoomView) {
+            zoomView.removeCallbacks(mSettleCheck);
+            zoomView.postDelayed(mSettleCheck, SETTLE_DELAY);
+        }
+    }
+
     public void setAllowParentInterceptOnEdge(boolean allow) {
         mAllowParentInterceptOnEdge = allow;
     }
@@ -688,6 +1206,25 @@ public class ZoomViewHelper implements View.OnTouchListener,
         mMatrixChangeListener = listener;
     }
 
+    /**
+     * Adds a listener notified after the one set by {@link #setOnMatrixChangeListener}, for
+     * components like overviews and overlays that follow the transform.
+     */
+    public void addOnMatrixChangeListener(OnMatrixChangedListener listener) {
+        if (null == mMatrixChangeListeners) {
+            mMatrixChangeListeners = new ArrayList<OnMatrixChangedListener>(2);
+        }
+        if (!mMatrixChangeListeners.contains(listener)) {
+            mMatrixChangeListeners.add(listener);
+        }
+    }
+
+    public void removeOnMatrixChangeListener(OnMatrixChangedListener listener) {
+        if (null != mMatrixChangeListeners) {
+            mMatrixChangeListeners.remove(listener);
+        }
+    }
+
     public void setAutoZoomBackEnabled(boolean enabled) {
         mAutoZoomBackEnabled = enabled;
     }
@@ -712,6 +1249,40 @@ public class ZoomViewHelper implements View.OnTouchListener,
         return mViewTapListener;
     }
 
+    /**
+     * Called on taps that hit a region of {@link #getRegions()}, before the photo tap listener.
+     */
+    public void setOnRegionTapListener(OnRegionTapListener listener) {
+        mRegionTapListener = listener;
+    }
+
+    public OnRegionTapListener getOnRegionTapListener() {
+        return mRegionTapListener;
+    }
+
+    /**
+     * @return the tappable regions, in source coordinates
+     */
+    public RegionIndex getRegions() {
+        if (null == mRegions) {
+            mRegions = new RegionIndex();
+        }
+        return mRegions;
+    }
+
+    /**
+     * Resolves a point of the view to the smallest region containing it.
+     *
+     * @param point x, y in view coordinates, replaced by the source coordinates
+     * @return the region id, or {@link RegionIndex#NO_REGION}
+     */
+    public int findRegionAt(float[] point) {
+        if (null == mRegions || mRegions.size() == 0 || !viewToSource(point, 0, 1)) {
+            return RegionIndex.NO_REGION;
+        }
+        return mRegions.findRegion(point[0], point[1]);
+    }
+
     public void setScale(float scale) {
         setScale(scale, false);
     }
@@ -740,15 +1311,163 @@ public class ZoomViewHelper implements View.OnTouchListener,
             }
 
             if (animate) {
-                zoomView.post(new AnimatedZoomRunnable(getScale(), scale,
+                startZoomAnimation(zoomView, new AnimatedZoomRunnable(getScale(), scale,
                         focalX, focalY));
             } else {
-                mSuppMatrix.setScale(scale, scale, focalX, focalY);
+                updateViewportSize();
+                mViewport.reset();
+                mViewport.postScale(scale, focalX, focalY);
                 checkAndDisplayMatrix();
             }
         }
     }
 
+    /**
+     * Thread-safe version of {@link #setScale(float, boolean)}, applied on the next frame.
+     */
+    public void requestScale(float scale, boolean animate) {
+        requestScale(scale, Float.NaN, Float.NaN, animate);
+    }
+
+    /**
+     * Thread-safe version of {@link #setScale(float, float, float, boolean)}, applied on the
+     * next frame.
+     */
+    public void requestScale(float scale, float focalX, float focalY, boolean animate) {
+        enqueue(new Command(Command.SCALE, scale, focalX, focalY, animate, null));
+    }
+
+    /**
+     * Thread-safe version of {@link #setRotationTo(float)}, applied on the next frame.
+     */
+    public void requestRotationTo(float degrees) {
+        enqueue(new Command(Command.ROTATION, degrees, 0, 0, false, null));
+    }
+
+    /**
+     * Thread-safe version of {@link #setDisplayMatrix(Matrix)}, applied on the next frame.
+     * The matrix is copied.
+     */
+    public void requestDisplayMatrix(Matrix finalMatrix) {
+        if (finalMatrix == null)
+            throw new IllegalArgumentException("Matrix cannot be null");
+        enqueue(new Command(Command.DISPLAY_MATRIX, 0, 0, 0, false, new Matrix(finalMatrix)));
+    }
+
+    /**
+     * Pans and zooms together so sourceRect, in source coordinates, is centered and fills the
+     * view as far as the scale limits allow. The rotation is kept.
+     *
+     * @param duration animation length in milliseconds, 0 to jump there
+     * @return false if there is nothing to zoom
+     */
+    public boolean zoomToRect(RectF sourceRect, int duration) {
+        final View zoomView = getView();
+        if (null == zoomView || !hasDrawable(asInterface())
+                || sourceRect.width() <= 0 || sourceRect.height() <= 0) {
+            return false;
+        }
+        updateViewportSize();
+
+        // scale at which the bounding box of the rotated rect fits the view
+        final double rad = Math.toRadians(mViewport.getRotation());
+        final double cos = Math.abs(Math.cos(rad)), sin = Math.abs(Math.sin(rad));
+        final double width = sourceRect.width() * mViewport.getBaseScaleX();
+        final double height = sourceRect.height() * mViewport.getBaseScaleY();
+        double scale = Math.min(getViewWidth(zoomView) / (cos * width + sin * height),
+                getViewHeight(zoomView) / (sin * width + cos * height));
+        scale = Math.max(mMinScale, Math.min(mMaxScale, scale));
+
+        cancelFling();
+        cancelViewportAnimation();
+        if (null == mZoomTarget) {
+            mZoomTarget = new Viewport();
+        }
+        mZoomTarget.set(mViewport);
+        mZoomTarget.setState((sourceRect.left + (double) sourceRect.right) / 2,
+                (sourceRect.top + (double) sourceRect.bottom) / 2, scale, mViewport.getRotation());
+        if (duration <= 0) {
+            mViewport.set(mZoomTarget);
+            checkAndDisplayMatrix();
+        } else {
+            animateTo(mZoomTarget, duration);
+        }
+        return true;
+    }
+
+    /**
+     * Starts composing scale, translate, rotate and set-matrix operations that are applied
+     * together by {@link Transaction#commit()}, with one bounds check, one
+     * {@link IZoomView#setImageMatrix} call and one listener notification.
+     */
+    public Transaction beginTransaction() {
+        updateViewportSize();
+        return new Transaction();
+    }
+
+    private void enqueue(Command command) {
+        mCommands.offer(command);
+        scheduleCommands();
+    }
+
+    private void scheduleCommands() {
+        // mView is only cleared by cleanup(), avoid getView() which calls it
+        final WeakReference<View> viewRef = mView;
+        final View zoomView = null == viewRef ? null : viewRef.get();
+        if (null != zoomView && mCommandsScheduled.compareAndSet(false, true)) {
+            Compat.postOnAnimation(zoomView, mDrainCommands);
+        }
+    }
+
+    /**
+     * Applies the queued commands. Each kind replaces the transform the previous one of its kind
+     * set, so only the last of each kind is applied, in the order they were requested; a display
+     * matrix also supersedes everything requested before it.
+     */
+    private void drainCommands() {
+        // cleared first, so a request racing with this drain schedules another one
+        mCommandsScheduled.set(false);
+
+        Command scale = null, rotation = null, displayMatrix = null;
+        boolean rotationFirst = false;
+        Command command;
+        while (null != (command = mCommands.poll())) {
+            switch (command.type) {
+                case Command.DISPLAY_MATRIX:
+                    displayMatrix = command;
+                    scale = null;
+                    rotation = null;
+                    break;
+                case Command.ROTATION:
+                    rotation = command;
+                    rotationFirst = false;
+                    break;
+                case Command.SCALE:
+                    scale = command;
+                    rotationFirst = null != rotation;
+                    break;
+            }
+        }
+
+        if (null != displayMatrix) {
+            setDisplayMatrix(displayMatrix.matrix);
+        }
+        if (null != rotation && (null == scale || rotationFirst)) {
+            setRotationTo(rotation.value);
+            rotation = null;
+        }
+        if (null != scale) {
+            if (Float.isNaN(scale.focalX)) {
+                setScale(scale.value, scale.animate);
+            } else {
+                setScale(scale.value, scale.focalX, scale.focalY, scale.animate);
+            }
+        }
+        if (null != rotation) {
+            setRotationTo(rotation.value);
+        }
+    }
+
     public void setScaleType(ScaleType scaleType) {
         if (scaleType != mScaleType) {
             mScaleType = scaleType;
@@ -784,20 +1503,172 @@ public class ZoomViewHelper implements View.OnTouchListener,
         }
     }
 
+    /**
+     * Fills report with the bytes held by the view's drawing cache and, if it is an
+     * {@link IMemoryReporter}, by the {@link IZoomView}. The drawing cache, enabled by the
+     * constructor, is only built for software drawing; its size is estimated from the view size.
+     *
+     * @return report
+     */
+    public MemoryReport getMemoryReport(MemoryReport report) {
+        report.clear();
+        final View zoomView = null != mView ? mView.get() : null;
+        if (null != zoomView && zoomView.isDrawingCacheEnabled() && !zoomView.isHardwareAccelerated()) {
+            report.add(MemoryReport.DRAWING_CACHE, 4L * zoomView.getWidth() * zoomView.getHeight());
+        }
+        final IZoomView zoomInterface = asInterface();
+        if (zoomInterface instanceof IMemoryReporter) {
+            ((IMemoryReporter) zoomInterface).reportMemory(report);
+        }
+        return report;
+    }
+
+    /**
+     * Releases memory, category by category in {@link MemoryReport#TRIM_ORDER}, until at most
+     * bytes are held or nothing more can be released. Released caches fill up again while the
+     * user keeps zooming.
+     *
+     * @return bytes held afterwards
+     */
+    public long trimTo(long bytes) {
+        final MemoryReport report = getMemoryReport(new MemoryReport());
+        final View zoomView = null != mView ? mView.get() : null;
+        final IZoomView zoomInterface = asInterface();
+        boolean drawingCacheDestroyed = false;
+        for (int category : MemoryReport.TRIM_ORDER) {
+            final long excess = report.getTotal() - bytes;
+            if (excess <= 0) {
+                break;
+            }
+            if (report.get(category) == 0) {
+                continue;
+            }
+            if (category == MemoryReport.DRAWING_CACHE) {
+                if (null != zoomView) {
+                    zoomView.destroyDrawingCache();
+                    drawingCacheDestroyed = true;
+                }
+            } else if (zoomInterface instanceof IMemoryReporter) {
+                ((IMemoryReporter) zoomInterface).trimMemory(category,
+                        Math.max(0, report.get(category) - excess));
+            }
+            getMemoryReport(report);
+            if (drawingCacheDestroyed) {
+                // the estimate doesn't know it is gone until the next software draw
+                report.add(MemoryReport.DRAWING_CACHE, -report.get(MemoryReport.DRAWING_CACHE));
+            }
+        }
+        return report.getTotal();
+    }
+
     public Matrix getDisplayMatrix() {
         return new Matrix(getDrawMatrix());
     }
 
     public Matrix getDrawMatrix() {
-        mDrawMatrix.set(mBaseMatrix);
-        mDrawMatrix.postConcat(mSuppMatrix);
+        mViewport.getDrawMatrix(mDrawMatrix);
         return mDrawMatrix;
     }
 
+    /**
+     * Maps count x, y pairs starting at pts[offset] in place, from view coordinates, e.g. touch
+     * positions, to source coordinates. The inverse matrix is kept until the transform
+     * changes, and nothing is allocated after the first call.
+     *
+     * @return false if the transform can't be inverted, pts are left untouched then
+     */
+    public boolean viewToSource(float[] pts, int offset, int count) {
+        if (!updateMapping() || !mMappingInvertible) {
+            return false;
+        }
+        mViewToSource.mapPoints(pts, offset, pts, offset, count);
+        return true;
+    }
+
+    /**
+     * Maps count x, y pairs starting at pts[offset] in place, from source coordinates to view
+     * coordinates. Nothing is allocated after the first call.
+     *
+     * @return false without a view, pts are left untouched then
+     */
+    public boolean sourceToView(float[] pts, int offset, int count) {
+        if (!updateMapping()) {
+            return false;
+        }
+        mSourceToView.mapPoints(pts, offset, pts, offset, count);
+        return true;
+    }
+
+    /**
+     * Rebuilds the mapping matrices if the draw matrix or the padding changed since they were
+     * built.
+     */
+    private boolean updateMapping() {
+        final View zoomView = null != mView ? mView.get() : null;
+        if (null == zoomView) {
+            return false;
+        }
+        final Matrix drawMatrix = getDrawMatrix();
+        final int paddingLeft = zoomView.getPaddingLeft();
+        final int paddingTop = zoomView.getPaddingTop();
+        if (null == mMappedMatrix) {
+            mMappedMatrix = new Matrix();
+            mSourceToView = new Matrix();
+            mViewToSource = new Matrix();
+        }
+        if (!mMappingValid || !mMappedMatrix.equals(drawMatrix)
+                || paddingLeft != mMappedPaddingLeft || paddingTop != mMappedPaddingTop) {
+            mMappedMatrix.set(drawMatrix);
+            mMappedPaddingLeft = paddingLeft;
+            mMappedPaddingTop = paddingTop;
+            mSourceToView.set(drawMatrix);
+            mSourceToView.postTranslate(paddingLeft, paddingTop);
+            mMappingInvertible = mSourceToView.invert(mViewToSource);
+            mMappingValid = true;
+        }
+        return true;
+    }
+
+    /**
+     * Copies the supplementary matrix, the one {@link #setDisplayMatrix(Matrix)} takes, into out.
+     */
+    public void getSuppMatrix(Matrix out) {
+        updateViewportSize();
+        mViewport.getSuppMatrix(out);
+    }
+
+    /**
+     * Runs animation in place of the zoom animation running so far, which would otherwise
+     * fight it frame by frame.
+     */
+    private void startZoomAnimation(View zoomView, AnimatedZoomRunnable animation) {
+        if (null != mZoomAnimation) {
+            zoomView.removeCallbacks(mZoomAnimation);
+        }
+        mZoomAnimation = animation;
+        zoomView.post(animation);
+        updateTransformState();
+    }
+
+    private void cancelViewportAnimation() {
+        if (null != mViewportAnimation) {
+            mViewportAnimation.cancel();
+        }
+    }
+
+    private void cancelZoomAnimation(View zoomView) {
+        if (null != mZoomAnimation) {
+            zoomView.removeCallbacks(mZoomAnimation);
+            mZoomAnimation = null;
+            updateTransformState();
+        }
+    }
+
     private void cancelFling() {
         if (null != mCurrentFlingRunnable) {
             mCurrentFlingRunnable.cancelFling();
             mCurrentFlingRunnable = null;
+            updateTransformState();
         }
     }
 
@@ -829,62 +1700,77 @@ public class ZoomViewHelper implements View.OnTouchListener,
             return false;
         }
 
-        final RectF rect = getDisplayRect(getDrawMatrix());
-        if (null == rect) {
+        IZoomView zoomInterface = asInterface();
+        if (null == zoomInterface || !zoomInterface.hasDrawable()) {
             return false;
         }
 
-        final float height = rect.height(), width = rect.width();
-        float deltaX = 0, deltaY = 0;
+        // Work on the double precision bounds, float ones drift at deep zoom levels
+        updateViewportSize();
+        zoomInterface.getDisplayRect(mDisplayRect);
+        mViewport.mapRect(mDisplayRect, mBounds);
+        final double left = mBounds[0], top = mBounds[1], right = mBounds[2], bottom = mBounds[3];
+        final double height = bottom - top, width = right - left;
+        double deltaX = 0, deltaY = 0;
 
         final int viewHeight = getViewHeight(zoomView);
         if (height <= viewHeight) {
             switch (mScaleType) {
                 case FIT_START:
-                    deltaY = -rect.top;
+                    deltaY = -top;
                     break;
                 case FIT_END:
-                    deltaY = viewHeight - height - rect.top;
+                    deltaY = viewHeight - height - top;
                     break;
                 default:
-                    deltaY = (viewHeight - height) / 2 - rect.top;
+                    deltaY = (viewHeight - height) / 2 - top;
                     break;
             }
-        } else if (rect.top > 0) {
-            deltaY = -rect.top;
-        } else if (rect.bottom < viewHeight) {
-            deltaY = viewHeight - rect.bottom;
+        } else if (top > 0) {
+            deltaY = -top;
+        } else if (bottom < viewHeight) {
+            deltaY = viewHeight - bottom;
         }
 
         final int viewWidth = getViewWidth(zoomView);
         if (width <= viewWidth) {
             switch (mScaleType) {
                 case FIT_START:
-                    deltaX = -rect.left;
+                    deltaX = -left;
                     break;
                 case FIT_END:
-                    deltaX = viewWidth - width - rect.left;
+                    deltaX = viewWidth - width - left;
                     break;
                 default:
-                    deltaX = (viewWidth - width) / 2 - rect.left;
+                    deltaX = (viewWidth - width) / 2 - left;
                     break;
             }
             mScrollEdge = EDGE_BOTH;
-        } else if (rect.left > 0) {
+        } else if (left > 0) {
             mScrollEdge = EDGE_LEFT;
-            deltaX = -rect.left;
-        } else if (rect.right < viewWidth) {
-            deltaX = viewWidth - rect.right;
+            deltaX = -left;
+        } else if (right < viewWidth) {
+            deltaX = viewWidth - right;
             mScrollEdge = EDGE_RIGHT;
         } else {
             mScrollEdge = EDGE_NONE;
         }
 
-        // Finally actually translate the matrix
-        mSuppMatrix.postTranslate(deltaX, deltaY);
+        // Finally actually translate the viewport
+        mViewport.postTranslate(deltaX, deltaY);
         return true;
     }
 
+    /**
+     * Keeps the viewport's view center in sync with the View, without moving the content.
+     */
+    private void updateViewportSize() {
+        View zoomView = null != mView ? mView.get() : null;
+        if (null != zoomView) {
+            mViewport.setViewSize(getViewWidth(zoomView), getViewHeight(zoomView));
+        }
+    }
+
     /**
      * Helper method that maps the supplied Matrix to the current Drawable
      *
@@ -915,23 +1801,12 @@ public class ZoomViewHelper implements View.OnTouchListener,
         this.ZOOM_DURATION = milliseconds;
     }
 
-    /**
-     * Helper method that 'unpacks' a Matrix and returns the required value
-     *
-     * @param matrix     - Matrix to unpack
-     * @param whichValue - Which value from Matrix.M* to return
-     * @return float - returned value
-     */
-    private float getValue(Matrix matrix, int whichValue) {
-        matrix.getValues(mMatrixValues);
-        return mMatrixValues[whichValue];
-    }
-
     /**
      * Resets the Matrix back to FIT_CENTER, and then displays it.s
      */
     private void resetMatrix() {
-        mSuppMatrix.reset();
+        updateViewportSize();
+        mViewport.reset();
         setViewMatrix(getDrawMatrix());
         checkMatrixBounds();
     }
@@ -944,10 +1819,16 @@ public class ZoomViewHelper implements View.OnTouchListener,
             zoomView.setImageMatrix(matrix);
 
             // Call MatrixChangedListener if needed
-            if (null != mMatrixChangeListener) {
+            final ArrayList<OnMatrixChangedListener> listeners = mMatrixChangeListeners;
+            if (null != mMatrixChangeListener || (null != listeners && !listeners.isEmpty())) {
                 RectF displayRect = getDisplayRect(matrix);
                 if (null != displayRect) {
-                    mMatrixChangeListener.onMatrixChanged(displayRect);
+                    if (null != mMatrixChangeListener) {
+                        mMatrixChangeListener.onMatrixChanged(displayRect);
+                    }
+                    for (int i = null == listeners ? -1 : listeners.size() - 1; i >= 0; i--) {
+                        listeners.get(i).onMatrixChanged(displayRect);
+                    }
                 }
             }
         }
@@ -1029,6 +1910,7 @@ public class ZoomViewHelper implements View.OnTouchListener,
             }
         } finally {
             initBaseMatrix = true;
+            mViewport.setBase(mBaseMatrix);
             resetMatrix();
         }
     }
@@ -1102,6 +1984,22 @@ public class ZoomViewHelper implements View.OnTouchListener,
         void onPhotoTap(View view, float x, float y);
     }
 
+    /**
+     * Interface definition for a callback to be invoked when a single tap hits one of the
+     * registered regions.
+     */
+    public static interface OnRegionTapListener {
+
+        /**
+         * @param view     - View the user tapped.
+         * @param regionId - id of the smallest region containing the tap.
+         * @param x        - where the user tapped, in source coordinates.
+         * @param y        - where the user tapped, in source coordinates.
+         * @return true if the tap was consumed and should not reach the photo tap listener.
+         */
+        boolean onRegionTap(View view, int regionId, float x, float y);
+    }
+
     /**
      * Interface definition for a callback to be invoked when the View is tapped with a single
      * tap.
@@ -1121,11 +2019,311 @@ public class ZoomViewHelper implements View.OnTouchListener,
         void onViewTap(View view, float x, float y);
     }
 
+    /**
+     * Batch of transform operations on a copy of the current state, see
+     * {@link #beginTransaction()}. Coordinates are view coordinates, operations apply in the
+     * order they are added. Use it on the UI thread.
+     */
+    public class Transaction {
+
+        private final Viewport mTarget = new Viewport(mViewport);
+        private int mDuration;
+
+        private Transaction() {
+        }
+
+        public Transaction scale(float factor, float pivotX, float pivotY) {
+            mTarget.postScale(factor, pivotX, pivotY);
+            return this;
+        }
+
+        public Transaction translate(float dx, float dy) {
+            mTarget.postTranslate(dx, dy);
+            return this;
+        }
+
+        public Transaction rotate(float degrees, float pivotX, float pivotY) {
+            mTarget.postRotate(degrees % 360, pivotX, pivotY);
+            return this;
+        }
+
+        /**
+         * Replaces everything so far by a supplementary matrix, as in
+         * {@link ZoomViewHelper#setDisplayMatrix(Matrix)}.
+         */
+        public Transaction setMatrix(Matrix suppMatrix) {
+            if (suppMatrix == null)
+                throw new IllegalArgumentException("Matrix cannot be null");
+            mTarget.setSuppMatrix(suppMatrix);
+            return this;
+        }
+
+        /**
+         * Replaces everything so far by the base matrix alone.
+         */
+        public Transaction reset() {
+            mTarget.reset();
+            return this;
+        }
+
+        /**
+         * Animates from the current state to the combined result instead of jumping to it.
+         */
+        public Transaction animate(int durationMillis) {
+            mDuration = durationMillis;
+            return this;
+        }
+
+        /**
+         * @return false if there is nothing to transform
+         */
+        public boolean commit() {
+            if (!hasDrawable(asInterface())) {
+                return false;
+            }
+            cancelFling();
+            cancelViewportAnimation();
+            if (mDuration <= 0) {
+                mViewport.set(mTarget);
+                checkAndDisplayMatrix();
+            } else {
+                animateTo(mTarget, mDuration);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Animates to target, after moving it within bounds the way a direct change would be.
+     */
+    private void animateTo(Viewport target, int duration) {
+        final View zoomView = getView();
+        if (null == zoomView) {
+            return;
+        }
+        if (null == mViewportAnimation) {
+            mViewportAnimation = new ViewportAnimation();
+        }
+        final ViewportAnimation animation = mViewportAnimation;
+        animation.mStart.set(mViewport);
+        mViewport.set(target);
+        checkMatrixBounds();
+        animation.mEnd.set(mViewport);
+        mViewport.set(animation.mStart);
+        animation.start(zoomView, duration);
+    }
+
+    /**
+     * Interpolates the viewport between two precomputed states. Reused for every animation, so
+     * frames allocate nothing, and the last frame sets the end state exactly.
+     */
+    private class ViewportAnimation implements Runnable {
+
+        final Viewport mStart = new Viewport();
+        final Viewport mEnd = new Viewport();
+        private long mStartTime;
+        private int mDuration;
+        private View mAnimatedView;
+
+        void start(View zoomView, int duration) {
+            mStartTime = System.currentTimeMillis();
+            mDuration = duration;
+            mAnimatedView = zoomView;
+            Compat.postOnAnimation(zoomView, this);
+            updateTransformState();
+        }
+
+        void cancel() {
+            if (null != mAnimatedView) {
+                mAnimatedView.removeCallbacks(this);
+                mAnimatedView = null;
+                updateTransformState();
+            }
+        }
+
+        boolean isRunning() {
+            return null != mAnimatedView;
+        }
+
+        @Override
+        public void run() {
+            if (null == mAnimatedView) {
+                return;
+            }
+            float t = 1f * (System.currentTimeMillis() - mStartTime) / mDuration;
+            if (t >= 1f) {
+                mViewport.set(mEnd);
+            } else {
+                mViewport.interpolate(mStart, mEnd, sInterpolator.getInterpolation(t));
+            }
+            setViewMatrix(getDrawMatrix());
+
+            if (t < 1f) {
+                Compat.postOnAnimation(mAnimatedView, this);
+            } else {
+                mAnimatedView = null;
+                updateTransformState();
+            }
+        }
+    }
+
+    /**
+     * Gesture detectors shared by the lazy helpers of one parent, kept as a tag on the parent.
+     * They drive the helper whose view the current gesture started on. Parents split touches
+     * between children, so a finger landing on another cell during a gesture starts a stream of
+     * its own; that cell is refused the detectors and ignores its touch until the next down.
+     */
+    private static class SharedDetectors implements OnGestureListener {
+
+        private final Context mContext;
+        private final minus.android.support.view.gestures.GestureDetector mScaleDragDetector;
+        private GestureDetector mGestureDetector;
+        private ZoomViewHelper mOwner;
+        // the owner's gesture is going on, from its down to its up or cancel
+        private boolean mOwnerTouching;
+
+        static SharedDetectors obtain(View zoomView) {
+            final ViewParent parent = zoomView.getParent();
+            if (!(parent instanceof View)) {
+                // not in a layout, nothing to share with
+                return new SharedDetectors(zoomView.getContext());
+            }
+            SharedDetectors shared = (SharedDetectors) ((View) parent).getTag(R.id.zoom_shared_detectors);
+            if (null == shared) {
+                shared = new SharedDetectors(zoomView.getContext());
+                ((View) parent).setTag(R.id.zoom_shared_detectors, shared);
+            }
+            return shared;
+        }
+
+        private static SharedDetectors peek(View zoomView) {
+            final ViewParent parent = null == zoomView ? null : zoomView.getParent();
+            if (!(parent instanceof View)) {
+                return null;
+            }
+            return (SharedDetectors) ((View) parent).getTag(R.id.zoom_shared_detectors);
+        }
+
+        static boolean isOwner(View zoomView, ZoomViewHelper helper) {
+            SharedDetectors shared = peek(zoomView);
+            return null != shared && shared.mOwner == helper;
+        }
+
+        static void release(View zoomView, ZoomViewHelper helper) {
+            SharedDetectors shared = peek(zoomView);
+            if (null != shared && shared.mOwner == helper) {
+                shared.mGestureDetector.setOnDoubleTapListener(null);
+                shared.mOwner = null;
+                shared.mOwnerTouching = false;
+            }
+        }
+
+        static void endTouch(View zoomView, ZoomViewHelper helper) {
+            SharedDetectors shared = peek(zoomView);
+            if (null != shared && shared.mOwner == helper) {
+                shared.mOwnerTouching = false;
+            }
+        }
+
+        private SharedDetectors(Context context) {
+            mContext = context;
+            mScaleDragDetector = VersionedGestureDetector.newInstance(context, this);
+            mGestureDetector = newGestureDetector();
+        }
+
+        private GestureDetector newGestureDetector() {
+            return new GestureDetector(mContext, new GestureDetector.SimpleOnGestureListener() {
+
+                // forward long click listener
+                @Override
+                public void onLongPress(MotionEvent e) {
+                    final ZoomViewHelper owner = mOwner;
+                    if (null != owner && null != owner.mLongClickListener) {
+                        owner.mLongClickListener.onLongClick(owner.getView());
+                    }
+                }
+            });
+        }
+
+        /**
+         * Hands the detectors to helper on its touch down, unless another helper's gesture is
+         * still going on.
+         */
+        void takeOver(ZoomViewHelper helper) {
+            if (mOwner != helper && null != mOwner && mOwnerTouching) {
+                helper.mScaleDragDetector = null;
+                helper.mGestureDetector = null;
+                return;
+            }
+            if (mOwner != helper) {
+                if (null != mOwner) {
+                    // a fresh detector, so taps on two cells can't pair up into a double tap
+                    mGestureDetector.setOnDoubleTapListener(null);
+                    mGestureDetector = newGestureDetector();
+                    mOwner.mScaleDragDetector = null;
+                    mOwner.mGestureDetector = null;
+                }
+                mOwner = helper;
+                mGestureDetector.setOnDoubleTapListener(helper.getDoubleTapListener());
+            }
+            mOwnerTouching = true;
+            helper.mScaleDragDetector = mScaleDragDetector;
+            helper.mGestureDetector = mGestureDetector;
+        }
+
+        @Override
+        public void onDrag(float dx, float dy) {
+            if (null != mOwner) {
+                mOwner.onDrag(dx, dy);
+            }
+        }
+
+        @Override
+        public void onFling(float startX, float startY, float velocityX, float velocityY) {
+            if (null != mOwner) {
+                mOwner.onFling(startX, startY, velocityX, velocityY);
+            }
+        }
+
+        @Override
+        public void onScale(float scaleFactor, float focusX, float focusY) {
+            if (null != mOwner) {
+                mOwner.onScale(scaleFactor, focusX, focusY);
+            }
+        }
+    }
+
+    /**
+     * A transform requested through the thread-safe request methods.
+     */
+    private static class Command {
+        static final int SCALE = 0;
+        static final int ROTATION = 1;
+        static final int DISPLAY_MATRIX = 2;
+
+        final int type;
+        final float value, focalX, focalY;
+        final boolean animate;
+        final Matrix matrix;
+
+        Command(int type, float value, float focalX, float focalY, boolean animate, Matrix matrix) {
+            this.type = type;
+            this.value = value;
+            this.focalX = focalX;
+            this.focalY = focalY;
+            this.animate = animate;
+            this.matrix = matrix;
+        }
+    }
+
     private class AnimatedZoomRunnable implements Runnable {
 
         private final float mFocalX, mFocalY;
         private final long mStartTime;
         private final float mZoomStart, mZoomEnd;
+        private boolean mStarted;
+        // scale set by the previous frame, in double so the steps multiply up to the target
+        private double mLastScale;
 
         public AnimatedZoomRunnable(final float currentZoom, final float targetZoom,
                                     final float focalX, final float focalY) {
@@ -1139,19 +2337,34 @@ public class ZoomViewHelper implements View.OnTouchListener,
         @Override
         public void run() {
             View zoomView = getView();
-            if (zoomView == null) {
+            if (zoomView == null || mZoomAnimation != this) {
                 return;
             }
+            if (!mStarted) {
+                mStarted = true;
+                updateViewportSize();
+                mLastScale = mViewport.getScale();
+            }
 
             float t = interpolate();
-            float scale = mZoomStart + t * (mZoomEnd - mZoomStart);
-            float deltaScale = scale / getScale();
+            double scale = t >= 1f ? mZoomEnd : mZoomStart + t * (mZoomEnd - mZoomStart);
 
-            onScale(deltaScale, mFocalX, mFocalY);
+            if (null != mScaleChangeListener) {
+                mScaleChangeListener.onScaleChange((float) (scale / mLastScale), mFocalX, mFocalY);
+            }
+            // a step relative to the current state, so requests applied between frames are kept
+            mViewport.postScale(scale / mLastScale, mFocalX, mFocalY);
+            mLastScale = scale;
+            mLastFocusCenter.x = mFocalX;
+            mLastFocusCenter.y = mFocalY;
+            checkAndDisplayMatrix();
 
             // We haven't hit our target scale yet, so post ourselves again
             if (t < 1f) {
                 Compat.postOnAnimation(zoomView, this);
+            } else {
+                mZoomAnimation = null;
+                updateTransformState();
             }
         }
 
@@ -1179,6 +2392,10 @@ public class ZoomViewHelper implements View.OnTouchListener,
             mScroller.forceFinished(true);
         }
 
+        public boolean isFinished() {
+            return mScroller.isFinished();
+        }
+
         public void fling(int viewWidth, int viewHeight, int velocityX,
                           int velocityY) {
             final RectF rect = getDisplayRect();
@@ -1224,6 +2441,7 @@ public class ZoomViewHelper implements View.OnTouchListener,
         @Override
         public void run() {
             if (mScroller.isFinished()) {
+                updateTransformState();
                 return; // remaining post that should not be handled
             }
 
@@ -1241,7 +2459,7 @@ public class ZoomViewHelper implements View.OnTouchListener,
                                     + newY);
                 }
 
-                mSuppMatrix.postTranslate(mCurrentX - newX, mCurrentY - newY);
+                mViewport.postTranslate(mCurrentX - newX, mCurrentY - newY);
                 setViewMatrix(getDrawMatrix());
 
                 mCurrentX = newX;
@@ -1249,6 +2467,8 @@ public class ZoomViewHelper implements View.OnTouchListener,
 
                 // Post On animation
                 Compat.postOnAnimation(zoomView, this);
+            } else {
+                updateTransformState();
             }
         }
     }
@@ -1282,6 +2502,16 @@ public class ZoomViewHelper implements View.OnTouchListener,
 
             View zoomView = photoViewAttacher.getView();
 
+            final OnRegionTapListener regionTapListener = photoViewAttacher.getOnRegionTapListener();
+            if (null != regionTapListener) {
+                final float[] point = {e.getX(), e.getY()};
+                final int regionId = photoViewAttacher.findRegionAt(point);
+                if (regionId != RegionIndex.NO_REGION
+                        && regionTapListener.onRegionTap(zoomView, regionId, point[0], point[1])) {
+                    return true;
+                }
+            }
+
             if (null != photoViewAttacher.getOnPhotoTapListener()) {
                 final RectF displayRect = photoViewAttacher.getDisplayRect();
 
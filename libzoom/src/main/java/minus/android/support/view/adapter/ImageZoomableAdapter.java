@@ -1,17 +1,26 @@
 package minus.android.support.view.adapter;
 
+import android.graphics.Bitmap;
 import android.graphics.Matrix;
 import android.graphics.RectF;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
 import android.widget.ImageView;
 
+import java.io.IOException;
+
+import minus.android.support.view.MemoryReport;
 import minus.android.support.view.ZoomViewHelper;
+import minus.android.support.view.bitmap.SharedBitmapCache;
 
 /**
  * Created by tagorewang on 2016/10/20.
  */
-public class ImageZoomableAdapter implements ZoomViewHelper.IZoomView {
+public class ImageZoomableAdapter implements ZoomViewHelper.IZoomView, ZoomViewHelper.IReleasable,
+        ZoomViewHelper.IMemoryReporter {
 
     private final ImageView imageView;
+    private String sharedKey;
 
     public ImageZoomableAdapter(ImageView imageView) {
         this.imageView = imageView;
@@ -61,4 +70,46 @@ public class ImageZoomableAdapter implements ZoomViewHelper.IZoomView {
         return imageView.getDrawable().getIntrinsicHeight();
     }
 
+    /**
+     * Shows the bitmap for source from {@link SharedBitmapCache}, so views showing the same
+     * content share one decoded bitmap. Decoding happens on the calling thread when no other
+     * view holds it yet. The reference is given back by {@link #release()}, which
+     * {@link ZoomViewHelper#cleanup()} calls.
+     */
+    public void setImageSource(SharedBitmapCache.Source source) throws IOException {
+        final Bitmap bitmap = SharedBitmapCache.getInstance().acquire(source);
+        final String previousKey = sharedKey;
+        sharedKey = source.getKey();
+        imageView.setImageBitmap(bitmap);
+        if (null != previousKey) {
+            SharedBitmapCache.getInstance().release(previousKey);
+        }
+    }
+
+    /**
+     * Reports the bitmap of a {@link BitmapDrawable}. It is shown, so there is nothing to trim.
+     */
+    @Override
+    public void reportMemory(MemoryReport report) {
+        final Drawable drawable = imageView.getDrawable();
+        if (drawable instanceof BitmapDrawable && null != ((BitmapDrawable) drawable).getBitmap()) {
+            report.add(MemoryReport.BITMAPS, ((BitmapDrawable) drawable).getBitmap().getByteCount());
+        }
+    }
+
+    @Override
+    public void trimMemory(int category, long bytes) {
+        // the bitmap is on screen
+    }
+
+    @Override
+    public void release() {
+        if (null != sharedKey) {
+            // detach before the cache may recycle it
+            imageView.setImageDrawable(null);
+            SharedBitmapCache.getInstance().release(sharedKey);
+            sharedKey = null;
+        }
+    }
+
 }
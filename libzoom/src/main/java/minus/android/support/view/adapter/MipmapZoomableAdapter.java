@@ -0,0 +1,139 @@
+package minus.android.support.view.adapter;
+
+import android.graphics.Bitmap;
+import android.graphics.Matrix;
+import android.graphics.RectF;
+import android.widget.ImageView;
+
+import minus.android.support.view.MemoryReport;
+import minus.android.support.view.ZoomViewHelper;
+import minus.android.support.view.bitmap.MipmapPyramid;
+
+/**
+ * Zoomable adapter for an {@link ImageView} showing a {@link MipmapPyramid}. The helper keeps
+ * working in level 0 coordinates; on every matrix update the adapter picks the level matching
+ * the draw scale (the helper's getScale() times the base scale) and pre-scales the matrix so
+ * the smaller bitmap covers the same area.
+ */
+public class MipmapZoomableAdapter implements ZoomViewHelper.IZoomView, ZoomViewHelper.IMemoryReporter {
+
+    private final ImageView imageView;
+    private final Matrix levelMatrix = new Matrix();
+    private final float[] matrixValues = new float[9];
+
+    private MipmapPyramid pyramid;
+    private int currentLevel = -1;
+
+    public MipmapZoomableAdapter(ImageView imageView) {
+        this.imageView = imageView;
+    }
+
+    /**
+     * Call {@link ZoomViewHelper#update()} afterwards so the base matrix is recomputed.
+     */
+    public void setPyramid(MipmapPyramid pyramid) {
+        this.pyramid = pyramid;
+        this.currentLevel = -1;
+        if (null == pyramid) {
+            imageView.setImageDrawable(null);
+        } else {
+            showLevel(0);
+        }
+    }
+
+    public MipmapPyramid getPyramid() {
+        return pyramid;
+    }
+
+    public int getCurrentLevel() {
+        return currentLevel;
+    }
+
+    @Override
+    public boolean hasDrawable() {
+        return null != pyramid;
+    }
+
+    @Override
+    public ZoomViewHelper.ScaleType getScaleType() {
+        return ZoomViewHelper.ScaleType.valueOf(imageView.getScaleType().toString());
+    }
+
+    @Override
+    public void setScaleType(ZoomViewHelper.ScaleType scaleType) {
+        imageView.setScaleType(ImageView.ScaleType.valueOf(scaleType.toString()));
+    }
+
+    @Override
+    public void setImageMatrix(Matrix m) {
+        if (null == pyramid) {
+            imageView.setImageMatrix(m);
+            return;
+        }
+
+        m.getValues(matrixValues);
+        final float scaleX = matrixValues[Matrix.MSCALE_X];
+        final float skewY = matrixValues[Matrix.MSKEW_Y];
+        showLevel(pyramid.levelForScale((float) Math.sqrt(scaleX * scaleX + skewY * skewY)));
+
+        final Bitmap level = pyramid.getLevel(currentLevel);
+        levelMatrix.set(m);
+        levelMatrix.preScale((float) pyramid.getWidth() / level.getWidth(),
+                (float) pyramid.getHeight() / level.getHeight());
+        imageView.setImageMatrix(levelMatrix);
+    }
+
+    @Override
+    public void getDisplayRect(RectF outRect) {
+        if (null == outRect) {
+            return;
+        }
+        outRect.set(0, 0, getIntrinsicWidth(), getIntrinsicHeight());
+    }
+
+    @Override
+    public int getIntrinsicWidth() {
+        if (!hasDrawable()) {
+            return 0;
+        }
+        return pyramid.getWidth();
+    }
+
+    @Override
+    public int getIntrinsicHeight() {
+        if (!hasDrawable()) {
+            return 0;
+        }
+        return pyramid.getHeight();
+    }
+
+    /**
+     * Reports all levels of the pyramid. The pyramid belongs to the caller, so there is nothing
+     * to trim.
+     */
+    @Override
+    public void reportMemory(MemoryReport report) {
+        if (null == pyramid) {
+            return;
+        }
+        for (int i = 0; i < pyramid.getLevelCount(); i++) {
+            final Bitmap level = pyramid.getLevel(i);
+            if (null != level && !level.isRecycled()) {
+                report.add(MemoryReport.BITMAPS, level.getByteCount());
+            }
+        }
+    }
+
+    @Override
+    public void trimMemory(int category, long bytes) {
+        // levels can't be rebuilt here
+    }
+
+    private void showLevel(int level) {
+        if (level != currentLevel) {
+            currentLevel = level;
+            imageView.setImageBitmap(pyramid.getLevel(level));
+        }
+    }
+
+}
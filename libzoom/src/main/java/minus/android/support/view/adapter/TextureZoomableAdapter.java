@@ -0,0 +1,88 @@
+package minus.android.support.view.adapter;
+
+import android.graphics.Matrix;
+import android.graphics.RectF;
+import android.view.TextureView;
+
+import minus.android.support.view.ZoomViewHelper;
+
+/**
+ * Zoomable adapter for a {@link TextureView} showing a camera preview or a video. The helper's
+ * draw matrix goes to {@link TextureView#setTransform(Matrix)}, so zooming only changes how the
+ * compositor samples the stream; frames are neither copied nor redrawn by the view.
+ * <p>
+ * A TextureView stretches its buffer to its own bounds before the transform is applied, and
+ * doesn't apply padding. The adapter undoes the stretch and adds the padding, so the helper sees
+ * the stream in buffer pixels like any other image. The buffer size is not exposed by the
+ * TextureView, set it with {@link #setContentSize(int, int)}, e.g. from the camera preview size
+ * or {@code MediaPlayer.OnVideoSizeChangedListener}.
+ */
+public class TextureZoomableAdapter implements ZoomViewHelper.IZoomView {
+
+    private final TextureView textureView;
+    private final Matrix transform = new Matrix();
+    private ZoomViewHelper.ScaleType scaleType = ZoomViewHelper.ScaleType.FIT_CENTER;
+    private int contentWidth, contentHeight;
+
+    public TextureZoomableAdapter(TextureView textureView) {
+        this.textureView = textureView;
+    }
+
+    /**
+     * Sets the size of the stream's buffers, 0 x 0 while there is none. Call
+     * {@link ZoomViewHelper#update()} afterwards so the base matrix matches.
+     */
+    public void setContentSize(int width, int height) {
+        contentWidth = Math.max(0, width);
+        contentHeight = Math.max(0, height);
+    }
+
+    @Override
+    public boolean hasDrawable() {
+        return contentWidth > 0 && contentHeight > 0;
+    }
+
+    @Override
+    public ZoomViewHelper.ScaleType getScaleType() {
+        return scaleType;
+    }
+
+    @Override
+    public void setScaleType(ZoomViewHelper.ScaleType scaleType) {
+        this.scaleType = scaleType;
+    }
+
+    @Override
+    public void setImageMatrix(Matrix m) {
+        final int width = textureView.getWidth();
+        final int height = textureView.getHeight();
+        if (!hasDrawable() || width <= 0 || height <= 0) {
+            textureView.setTransform(null);
+            return;
+        }
+        // view = padding * m * stretch^-1 * (buffer stretched to the view)
+        transform.setScale((float) contentWidth / width, (float) contentHeight / height);
+        transform.postConcat(m);
+        transform.postTranslate(textureView.getPaddingLeft(), textureView.getPaddingTop());
+        textureView.setTransform(transform);
+    }
+
+    @Override
+    public void getDisplayRect(RectF outRect) {
+        if (null == outRect) {
+            return;
+        }
+        outRect.set(0, 0, contentWidth, contentHeight);
+    }
+
+    @Override
+    public int getIntrinsicWidth() {
+        return contentWidth;
+    }
+
+    @Override
+    public int getIntrinsicHeight() {
+        return contentHeight;
+    }
+
+}
@@ -0,0 +1,66 @@
+package minus.android.support.view.bitmap;
+
+import android.graphics.Bitmap;
+
+/**
+ * A chain of successively half-sized copies of one bitmap. Level 0 is the original bitmap,
+ * level n is roughly 1/2^n of it in each dimension.
+ *
+ * @see MipmapPyramidBuilder
+ */
+public class MipmapPyramid {
+
+    private final Bitmap[] mLevels;
+
+    MipmapPyramid(Bitmap[] levels) {
+        mLevels = levels;
+    }
+
+    public int getLevelCount() {
+        return mLevels.length;
+    }
+
+    public Bitmap getLevel(int level) {
+        return mLevels[level];
+    }
+
+    /**
+     * @return width of level 0, i.e. the source bitmap
+     */
+    public int getWidth() {
+        return mLevels[0].getWidth();
+    }
+
+    /**
+     * @return height of level 0, i.e. the source bitmap
+     */
+    public int getHeight() {
+        return mLevels[0].getHeight();
+    }
+
+    /**
+     * Picks the smallest level that still has at least one pixel per screen pixel.
+     *
+     * @param scale screen pixels per source pixel of the final draw matrix
+     * @return level index in [0, getLevelCount())
+     */
+    public int levelForScale(float scale) {
+        if (scale <= 0f || scale >= 1f) {
+            return 0;
+        }
+        int level = (int) Math.floor(Math.log(1f / scale) / Math.log(2));
+        return Math.min(level, mLevels.length - 1);
+    }
+
+    /**
+     * Recycles the generated levels. Level 0 belongs to the caller and is left untouched.
+     */
+    public void recycle() {
+        for (int i = 1; i < mLevels.length; i++) {
+            if (null != mLevels[i] && !mLevels[i].isRecycled()) {
+                mLevels[i].recycle();
+            }
+        }
+    }
+
+}
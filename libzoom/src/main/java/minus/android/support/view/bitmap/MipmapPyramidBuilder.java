@@ -0,0 +1,160 @@
+package minus.android.support.view.bitmap;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.os.Build.VERSION;
+import android.os.Build.VERSION_CODES;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Builds a {@link MipmapPyramid} from a bitmap. Each level is a 2x2 box filter of the previous
+ * one; the rows of a level are split into bands and down-sampled in parallel on a fork-join
+ * pool sized to the number of cores (sequentially before Lollipop).
+ * <p>
+ * {@link #build(Bitmap)} blocks until all levels are ready, so call it off the main thread.
+ */
+public class MipmapPyramidBuilder {
+
+    public static final int DEFAULT_MIN_LEVEL_SIZE = 256;
+
+    /**
+     * Destination rows handled by one leaf task.
+     */
+    private static final int BAND_ROWS = 64;
+
+    private int mMinLevelSize = DEFAULT_MIN_LEVEL_SIZE;
+    private int mParallelism = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Stop generating levels once the longer side drops to this many pixels.
+     */
+    public MipmapPyramidBuilder setMinLevelSize(int minLevelSize) {
+        if (minLevelSize < 1)
+            throw new IllegalArgumentException("minLevelSize must be positive");
+        mMinLevelSize = minLevelSize;
+        return this;
+    }
+
+    public MipmapPyramidBuilder setParallelism(int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("parallelism must be positive");
+        mParallelism = parallelism;
+        return this;
+    }
+
+    public MipmapPyramid build(Bitmap source) {
+        if (null == source || source.isRecycled())
+            throw new IllegalArgumentException("Bitmap cannot be null or recycled");
+
+        int levelCount = 1;
+        for (int w = source.getWidth(), h = source.getHeight();
+             Math.max(w, h) > mMinLevelSize && Math.min(w, h) > 1;
+             w = half(w), h = half(h)) {
+            levelCount++;
+        }
+
+        final Bitmap[] levels = new Bitmap[levelCount];
+        levels[0] = source;
+        if (levelCount > 1) {
+            if (VERSION.SDK_INT >= VERSION_CODES.LOLLIPOP && mParallelism > 1) {
+                buildParallel(levels);
+            } else {
+                for (int i = 1; i < levels.length; i++) {
+                    levels[i] = createLevel(levels[i - 1]);
+                    halveRows(levels[i - 1], levels[i], 0, levels[i].getHeight());
+                }
+            }
+        }
+        return new MipmapPyramid(levels);
+    }
+
+    @TargetApi(VERSION_CODES.LOLLIPOP)
+    private void buildParallel(Bitmap[] levels) {
+        ForkJoinPool pool = new ForkJoinPool(mParallelism);
+        try {
+            for (int i = 1; i < levels.length; i++) {
+                levels[i] = createLevel(levels[i - 1]);
+                pool.invoke(new HalveTask(levels[i - 1], levels[i], 0, levels[i].getHeight()));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static int half(int size) {
+        return (size + 1) / 2;
+    }
+
+    private static Bitmap createLevel(Bitmap src) {
+        Bitmap.Config config = src.getConfig();
+        if (null == config) {
+            config = Bitmap.Config.ARGB_8888;
+        }
+        return Bitmap.createBitmap(half(src.getWidth()), half(src.getHeight()), config);
+    }
+
+    /**
+     * Fills destination rows [startRow, endRow) of dst with the 2x2 average of src.
+     */
+    static void halveRows(Bitmap src, Bitmap dst, int startRow, int endRow) {
+        final int sw = src.getWidth();
+        final int sh = src.getHeight();
+        final int dw = dst.getWidth();
+        final int rows = endRow - startRow;
+        final int srcTop = startRow * 2;
+        final int srcRows = Math.min(rows * 2, sh - srcTop);
+
+        final int[] in = new int[sw * srcRows];
+        final int[] out = new int[dw * rows];
+        src.getPixels(in, 0, sw, 0, srcTop, sw, srcRows);
+
+        for (int r = 0; r < rows; r++) {
+            final int row0 = (r * 2) * sw;
+            final int row1 = Math.min(r * 2 + 1, srcRows - 1) * sw;
+            for (int c = 0; c < dw; c++) {
+                final int x0 = c * 2;
+                final int x1 = Math.min(x0 + 1, sw - 1);
+                out[r * dw + c] = average(in[row0 + x0], in[row0 + x1], in[row1 + x0], in[row1 + x1]);
+            }
+        }
+        dst.setPixels(out, 0, dw, 0, startRow, dw, rows);
+    }
+
+    private static int average(int p0, int p1, int p2, int p3) {
+        final int a = ((p0 >>> 24) + (p1 >>> 24) + (p2 >>> 24) + (p3 >>> 24) + 2) >> 2;
+        final int r = (((p0 >> 16) & 0xff) + ((p1 >> 16) & 0xff) + ((p2 >> 16) & 0xff) + ((p3 >> 16) & 0xff) + 2) >> 2;
+        final int g = (((p0 >> 8) & 0xff) + ((p1 >> 8) & 0xff) + ((p2 >> 8) & 0xff) + ((p3 >> 8) & 0xff) + 2) >> 2;
+        final int b = ((p0 & 0xff) + (p1 & 0xff) + (p2 & 0xff) + (p3 & 0xff) + 2) >> 2;
+        return (a << 24) | (r << 16) | (g << 8) | b;
+    }
+
+    @TargetApi(VERSION_CODES.LOLLIPOP)
+    private static class HalveTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Bitmap mSrc, mDst;
+        private final int mStartRow, mEndRow;
+
+        HalveTask(Bitmap src, Bitmap dst, int startRow, int endRow) {
+            mSrc = src;
+            mDst = dst;
+            mStartRow = startRow;
+            mEndRow = endRow;
+        }
+
+        @Override
+        protected void compute() {
+            if (mEndRow - mStartRow <= BAND_ROWS) {
+                halveRows(mSrc, mDst, mStartRow, mEndRow);
+                return;
+            }
+            final int mid = (mStartRow + mEndRow) >>> 1;
+            invokeAll(new HalveTask(mSrc, mDst, mStartRow, mid),
+                    new HalveTask(mSrc, mDst, mid, mEndRow));
+        }
+    }
+
+}
@@ -0,0 +1,146 @@
+package minus.android.support.view.bitmap;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * Process wide, reference-counted cache of decoded bitmaps keyed by content. Every
+ * {@link #acquire(Source)} must be paired with a {@link #release(String)}; the bitmap is
+ * recycled as soon as the last holder releases it, so holders have to detach it from their
+ * views first.
+ */
+public class SharedBitmapCache {
+
+    /**
+     * Something that can be decoded into a bitmap.
+     */
+    public interface Source {
+        /**
+         * @return key identifying the decoded content. Two sources with the same key share one
+         * bitmap, so the key must change whenever the decoded pixels would.
+         */
+        String getKey();
+
+        Bitmap decode() throws IOException;
+    }
+
+    /**
+     * Decodes a file. The key covers path, length, modification time and sample size.
+     */
+    public static class FileSource implements Source {
+
+        private final File mFile;
+        private final int mSampleSize;
+
+        public FileSource(File file) {
+            this(file, 1);
+        }
+
+        public FileSource(File file, int sampleSize) {
+            mFile = file;
+            mSampleSize = Math.max(1, sampleSize);
+        }
+
+        @Override
+        public String getKey() {
+            return mFile.getAbsolutePath() + ':' + mFile.length() + ':' + mFile.lastModified()
+                    + '@' + mSampleSize;
+        }
+
+        @Override
+        public Bitmap decode() throws IOException {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = mSampleSize;
+            Bitmap bitmap = BitmapFactory.decodeFile(mFile.getAbsolutePath(), options);
+            if (null == bitmap) {
+                throw new IOException("Unable to decode " + mFile);
+            }
+            return bitmap;
+        }
+    }
+
+    private static SharedBitmapCache sInstance;
+
+    public static synchronized SharedBitmapCache getInstance() {
+        if (null == sInstance) {
+            sInstance = new SharedBitmapCache();
+        }
+        return sInstance;
+    }
+
+    private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+
+    /**
+     * Returns the shared bitmap for the source, decoding it on the calling thread if no other
+     * holder has it yet.
+     */
+    public Bitmap acquire(Source source) throws IOException {
+        final String key = source.getKey();
+        final Entry entry;
+        synchronized (mEntries) {
+            Entry existing = mEntries.get(key);
+            if (null == existing) {
+                existing = new Entry();
+                mEntries.put(key, existing);
+            }
+            existing.refCount++;
+            entry = existing;
+        }
+
+        synchronized (entry) {
+            if (null == entry.bitmap) {
+                try {
+                    entry.bitmap = source.decode();
+                    if (null == entry.bitmap) {
+                        throw new IOException("Source decoded to null: " + key);
+                    }
+                } catch (IOException e) {
+                    release(key);
+                    throw e;
+                } catch (RuntimeException e) {
+                    release(key);
+                    throw e;
+                }
+            }
+            return entry.bitmap;
+        }
+    }
+
+    /**
+     * Drops one reference to the bitmap stored under key, recycling it when none are left.
+     */
+    public void release(String key) {
+        final Entry entry;
+        synchronized (mEntries) {
+            entry = mEntries.get(key);
+            if (null == entry || --entry.refCount > 0) {
+                return;
+            }
+            mEntries.remove(key);
+        }
+
+        synchronized (entry) {
+            if (null != entry.bitmap && !entry.bitmap.isRecycled()) {
+                entry.bitmap.recycle();
+            }
+            entry.bitmap = null;
+        }
+    }
+
+    public int getReferenceCount(String key) {
+        synchronized (mEntries) {
+            Entry entry = mEntries.get(key);
+            return null == entry ? 0 : entry.refCount;
+        }
+    }
+
+    private static class Entry {
+        int refCount;
+        Bitmap bitmap;
+    }
+
+}
@@ -0,0 +1,245 @@
+package minus.android.support.view.overlay;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.drawable.Drawable;
+import android.util.AttributeSet;
+import android.view.View;
+
+import java.util.ArrayList;
+
+import minus.android.support.view.ZoomViewHelper;
+
+/**
+ * Draws markers anchored at image coordinates on top of a zoomable view. Place it over the zoom
+ * view with the same bounds. Markers are kept in a {@link QuadTree} in source coordinates, so a
+ * frame only touches the markers inside the visible part of the image, and their positions are
+ * mapped with a single {@link Matrix#mapPoints} call. The tree covers the image and grows to
+ * take markers placed outside it, e.g. before the image is loaded; it is rebuilt when the image
+ * size changes.
+ * <p>
+ * Icons keep their size while zooming. An icon is drawn with its bounds relative to the marker
+ * position, e.g. {@code (-w / 2, -h, w / 2, 0)} for a pin standing on its anchor; icons without
+ * bounds get those.
+ */
+public class MarkerOverlayView extends View implements ZoomViewHelper.OnMatrixChangedListener {
+
+    public static class Marker {
+        public final float x, y;
+        public final Drawable icon;
+        public Object tag;
+
+        /**
+         * @param icon null to use the overlay's default icon
+         */
+        public Marker(float x, float y, Drawable icon) {
+            this.x = x;
+            this.y = y;
+            this.icon = icon;
+        }
+
+        public Marker(float x, float y) {
+            this(x, y, null);
+        }
+    }
+
+    private final Matrix mInverse = new Matrix();
+    private final RectF mVisibleRect = new RectF();
+    private final RectF mTreeBounds = new RectF(0, 0, 1, 1);
+    private final ArrayList<Marker> mVisible = new ArrayList<Marker>();
+    private float[] mPoints = new float[64];
+
+    private QuadTree<Marker> mMarkers = new QuadTree<Marker>(0, 0, 1, 1);
+    private ZoomViewHelper mHelper;
+    private Drawable mDefaultIcon;
+    private int mIconExtent;
+    // image size the tree was built for
+    private int mIndexedWidth, mIndexedHeight;
+
+    public MarkerOverlayView(Context context) {
+        super(context);
+    }
+
+    public MarkerOverlayView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+    }
+
+    public MarkerOverlayView(Context context, AttributeSet attrs, int defStyleAttr) {
+        super(context, attrs, defStyleAttr);
+    }
+
+    /**
+     * Follows the transform of helper, pass null to detach. Markers are kept, but re-indexed
+     * against the size of the new image.
+     */
+    public void setZoomViewHelper(ZoomViewHelper helper) {
+        if (null != mHelper) {
+            mHelper.removeOnMatrixChangeListener(this);
+        }
+        mHelper = helper;
+        if (null != helper) {
+            helper.addOnMatrixChangeListener(this);
+        }
+        reindex();
+        invalidate();
+    }
+
+    public void setDefaultIcon(Drawable icon) {
+        mDefaultIcon = icon;
+        if (null != icon) {
+            prepareIcon(icon);
+        }
+        invalidate();
+    }
+
+    public void addMarker(Marker marker) {
+        if (null != marker.icon) {
+            prepareIcon(marker.icon);
+        }
+        if (marker.x < mTreeBounds.left || marker.x > mTreeBounds.right
+                || marker.y < mTreeBounds.top || marker.y > mTreeBounds.bottom) {
+            // would pile up in the root, grow the tree to take it
+            rebuild(marker);
+        } else {
+            mMarkers.insert(marker, marker.x, marker.y);
+        }
+        invalidate();
+    }
+
+    public void removeMarker(Marker marker) {
+        if (mMarkers.remove(marker)) {
+            invalidate();
+        }
+    }
+
+    public void clearMarkers() {
+        mMarkers.clear();
+        invalidate();
+    }
+
+    public int getMarkerCount() {
+        return mMarkers.size();
+    }
+
+    /**
+     * Adds the markers whose anchor lies in rect, in source coordinates, to out.
+     */
+    public void findMarkers(RectF rect, ArrayList<Marker> out) {
+        mMarkers.query(rect, out);
+    }
+
+    @Override
+    public void onMatrixChanged(RectF rect) {
+        final ZoomViewHelper.IZoomView zoomView = null == mHelper ? null : mHelper.asInterface();
+        if (null != zoomView && (zoomView.getIntrinsicWidth() != mIndexedWidth
+                || zoomView.getIntrinsicHeight() != mIndexedHeight)) {
+            // the image was loaded or replaced since the tree was built
+            reindex();
+        }
+        // coalesced into one draw per frame
+        invalidate();
+    }
+
+    private void prepareIcon(Drawable icon) {
+        Rect bounds = icon.getBounds();
+        if (bounds.isEmpty()) {
+            final int width = icon.getIntrinsicWidth();
+            final int height = icon.getIntrinsicHeight();
+            icon.setBounds(-width / 2, -height, width - width / 2, 0);
+            bounds = icon.getBounds();
+        }
+        mIconExtent = Math.max(mIconExtent, Math.max(
+                Math.max(-bounds.left, bounds.right), Math.max(-bounds.top, bounds.bottom)));
+    }
+
+    /**
+     * Builds the tree for the image size, grown to cover markers outside the image.
+     */
+    private void reindex() {
+        final ZoomViewHelper.IZoomView zoomView = null == mHelper ? null : mHelper.asInterface();
+        mIndexedWidth = null == zoomView ? 0 : zoomView.getIntrinsicWidth();
+        mIndexedHeight = null == zoomView ? 0 : zoomView.getIntrinsicHeight();
+        mTreeBounds.set(0, 0, Math.max(1, mIndexedWidth), Math.max(1, mIndexedHeight));
+        rebuild(null);
+    }
+
+    /**
+     * Re-inserts every marker into a tree covering mTreeBounds, plus added if not null. Grown
+     * bounds get room to spare, so markers added one by one don't rebuild every time.
+     */
+    private void rebuild(Marker added) {
+        RectF all = new RectF(-Float.MAX_VALUE, -Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE);
+        mVisible.clear();
+        mMarkers.query(all, mVisible);
+        if (null != added) {
+            mVisible.add(added);
+        }
+        for (Marker marker : mVisible) {
+            mTreeBounds.union(marker.x, marker.y);
+        }
+        if (mTreeBounds.right > Math.max(1, mIndexedWidth) || mTreeBounds.bottom > Math.max(1, mIndexedHeight)
+                || mTreeBounds.left < 0 || mTreeBounds.top < 0) {
+            mTreeBounds.inset(-Math.max(1, mTreeBounds.width() / 2), -Math.max(1, mTreeBounds.height() / 2));
+        }
+        QuadTree<Marker> markers = new QuadTree<Marker>(mTreeBounds.left, mTreeBounds.top,
+                mTreeBounds.right, mTreeBounds.bottom);
+        for (Marker marker : mVisible) {
+            markers.insert(marker, marker.x, marker.y);
+        }
+        mVisible.clear();
+        mMarkers = markers;
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        if (null == mHelper || mMarkers.size() == 0) {
+            return;
+        }
+        final View zoomView = mHelper.getView();
+        final Matrix drawMatrix = mHelper.getDrawMatrix();
+        if (null == zoomView || !drawMatrix.invert(mInverse)) {
+            return;
+        }
+
+        // visible part of the image, grown by the icon size so partly visible icons are drawn
+        final int left = zoomView.getPaddingLeft();
+        final int top = zoomView.getPaddingTop();
+        mVisibleRect.set(-mIconExtent, -mIconExtent,
+                zoomView.getWidth() - left - zoomView.getPaddingRight() + mIconExtent,
+                zoomView.getHeight() - top - zoomView.getPaddingBottom() + mIconExtent);
+        mInverse.mapRect(mVisibleRect);
+
+        mVisible.clear();
+        mMarkers.query(mVisibleRect, mVisible);
+        final int count = mVisible.size();
+        if (count == 0) {
+            return;
+        }
+        if (mPoints.length < count * 2) {
+            mPoints = new float[Math.max(count * 2, mPoints.length * 2)];
+        }
+        for (int i = 0; i < count; i++) {
+            Marker marker = mVisible.get(i);
+            mPoints[i * 2] = marker.x;
+            mPoints[i * 2 + 1] = marker.y;
+        }
+        drawMatrix.mapPoints(mPoints, 0, mPoints, 0, count);
+
+        for (int i = 0; i < count; i++) {
+            Marker marker = mVisible.get(i);
+            Drawable icon = null != marker.icon ? marker.icon : mDefaultIcon;
+            if (null == icon) {
+                continue;
+            }
+            final int saveCount = canvas.save();
+            canvas.translate(left + mPoints[i * 2], top + mPoints[i * 2 + 1]);
+            icon.draw(canvas);
+            canvas.restoreToCount(saveCount);
+        }
+        mVisible.clear();
+    }
+
+}
@@ -0,0 +1,202 @@
+package minus.android.support.view.overlay;
+
+import android.graphics.RectF;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Region quadtree of items with bounding boxes, points being empty boxes. A node splits in four
+ * once it holds more than {@link #MAX_ITEMS} items; an item stays in the deepest node that fully
+ * contains it, items outside the tree bounds stay in the root. Not thread-safe.
+ *
+ * @param <T> item type, compared by {@code equals}; an item can only be added once
+ */
+public class QuadTree<T> {
+
+    static final int MAX_ITEMS = 8;
+    static final int MAX_DEPTH = 16;
+
+    private final Node<T> mRoot;
+    private final HashMap<T, Entry<T>> mEntries = new HashMap<T, Entry<T>>();
+
+    public QuadTree(float left, float top, float right, float bottom) {
+        mRoot = new Node<T>(left, top, right, bottom, 0);
+    }
+
+    public void insert(T item, float x, float y) {
+        insert(item, x, y, x, y);
+    }
+
+    /**
+     * Adds item, replacing its previous bounds if it is already in the tree.
+     */
+    public void insert(T item, float left, float top, float right, float bottom) {
+        remove(item);
+        Entry<T> entry = new Entry<T>(item, left, top, right, bottom);
+        mEntries.put(item, entry);
+        mRoot.insert(entry);
+    }
+
+    /**
+     * @return true if item was in the tree
+     */
+    public boolean remove(T item) {
+        Entry<T> entry = mEntries.remove(item);
+        if (null == entry) {
+            return false;
+        }
+        entry.node.items.remove(entry);
+        return true;
+    }
+
+    public boolean contains(T item) {
+        return mEntries.containsKey(item);
+    }
+
+    /**
+     * @return bounds of item, or null if it is not in the tree
+     */
+    public RectF getBounds(T item, RectF out) {
+        Entry<T> entry = mEntries.get(item);
+        if (null == entry) {
+            return null;
+        }
+        out.set(entry.left, entry.top, entry.right, entry.bottom);
+        return out;
+    }
+
+    /**
+     * Adds the items whose bounds intersect rect, edges included, to out.
+     */
+    public void query(RectF rect, List<T> out) {
+        mRoot.query(rect.left, rect.top, rect.right, rect.bottom, out);
+    }
+
+    /**
+     * Adds the items whose bounds contain (x, y), edges included, to out.
+     */
+    public void query(float x, float y, List<T> out) {
+        mRoot.query(x, y, x, y, out);
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+
+    public void clear() {
+        mEntries.clear();
+        mRoot.clear();
+    }
+
+    private static class Entry<T> {
+        final T item;
+        final float left, top, right, bottom;
+        Node<T> node;
+
+        Entry(T item, float left, float top, float right, float bottom) {
+            this.item = item;
+            this.left = Math.min(left, right);
+            this.top = Math.min(top, bottom);
+            this.right = Math.max(left, right);
+            this.bottom = Math.max(top, bottom);
+        }
+    }
+
+    private static class Node<T> {
+        final float left, top, right, bottom;
+        final int depth;
+        final ArrayList<Entry<T>> items = new ArrayList<Entry<T>>();
+        Node<T>[] children;
+
+        Node(float left, float top, float right, float bottom, int depth) {
+            this.left = left;
+            this.top = top;
+            this.right = right;
+            this.bottom = bottom;
+            this.depth = depth;
+        }
+
+        boolean encloses(Entry<T> entry) {
+            return entry.left >= left && entry.right <= right
+                    && entry.top >= top && entry.bottom <= bottom;
+        }
+
+        void insert(Entry<T> entry) {
+            Node<T> node = this;
+            for (; ; ) {
+                if (null == node.children) {
+                    if (node.items.size() < MAX_ITEMS || node.depth >= MAX_DEPTH) {
+                        node.add(entry);
+                        return;
+                    }
+                    node.split();
+                }
+                Node<T> child = node.childEnclosing(entry);
+                if (null == child) {
+                    node.add(entry);
+                    return;
+                }
+                node = child;
+            }
+        }
+
+        void add(Entry<T> entry) {
+            entry.node = this;
+            items.add(entry);
+        }
+
+        Node<T> childEnclosing(Entry<T> entry) {
+            for (Node<T> child : children) {
+                if (child.encloses(entry)) {
+                    return child;
+                }
+            }
+            return null;
+        }
+
+        void split() {
+            final float midX = (left + right) / 2;
+            final float midY = (top + bottom) / 2;
+            // no generic array creation, the elements are all Node<T>
+            @SuppressWarnings({"unchecked", "rawtypes"})
+            final Node<T>[] quadrants = new Node[4];
+            quadrants[0] = new Node<T>(left, top, midX, midY, depth + 1);
+            quadrants[1] = new Node<T>(midX, top, right, midY, depth + 1);
+            quadrants[2] = new Node<T>(left, midY, midX, bottom, depth + 1);
+            quadrants[3] = new Node<T>(midX, midY, right, bottom, depth + 1);
+            children = quadrants;
+            for (int i = items.size() - 1; i >= 0; i--) {
+                Entry<T> entry = items.get(i);
+                Node<T> child = childEnclosing(entry);
+                if (null != child) {
+                    items.remove(i);
+                    child.add(entry);
+                }
+            }
+        }
+
+        void query(float l, float t, float r, float b, List<T> out) {
+            for (int i = 0, count = items.size(); i < count; i++) {
+                Entry<T> entry = items.get(i);
+                if (entry.left <= r && entry.right >= l && entry.top <= b && entry.bottom >= t) {
+                    out.add(entry.item);
+                }
+            }
+            if (null != children) {
+                for (Node<T> child : children) {
+                    if (child.left <= r && child.right >= l && child.top <= b && child.bottom >= t) {
+                        child.query(l, t, r, b, out);
+                    }
+                }
+            }
+        }
+
+        void clear() {
+            items.clear();
+            children = null;
+        }
+    }
+
+}
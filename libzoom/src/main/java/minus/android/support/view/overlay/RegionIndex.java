@@ -0,0 +1,172 @@
+package minus.android.support.view.overlay;
+
+import android.graphics.RectF;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Tappable regions in source coordinates, e.g. the rooms of a floor plan, indexed by a
+ * {@link QuadTree} on their bounds so a point is resolved without scanning every region.
+ * Regions are rectangles or simple polygons identified by an id. Not thread-safe.
+ */
+public class RegionIndex {
+
+    public static final int NO_REGION = -1;
+
+    private final HashMap<Integer, Region> mRegions = new HashMap<Integer, Region>();
+    private final ArrayList<Region> mCandidates = new ArrayList<Region>();
+    private final RectF mTreeBounds = new RectF();
+    private QuadTree<Region> mTree;
+
+    public void addRect(int id, float left, float top, float right, float bottom) {
+        add(new Region(id, left, top, right, bottom, null));
+    }
+
+    /**
+     * @param points x, y pairs of the polygon's vertices, copied
+     */
+    public void addPolygon(int id, float[] points) {
+        if (points.length < 6 || points.length % 2 != 0)
+            throw new IllegalArgumentException("A polygon needs at least three x, y pairs");
+        float left = points[0], top = points[1], right = points[0], bottom = points[1];
+        for (int i = 2; i < points.length; i += 2) {
+            left = Math.min(left, points[i]);
+            right = Math.max(right, points[i]);
+            top = Math.min(top, points[i + 1]);
+            bottom = Math.max(bottom, points[i + 1]);
+        }
+        add(new Region(id, left, top, right, bottom, points.clone()));
+    }
+
+    public boolean remove(int id) {
+        Region region = mRegions.remove(id);
+        if (null == region) {
+            return false;
+        }
+        mTree.remove(region);
+        return true;
+    }
+
+    public void clear() {
+        mRegions.clear();
+        mTree = null;
+    }
+
+    public int size() {
+        return mRegions.size();
+    }
+
+    /**
+     * @return the smallest region containing (x, y), or {@link #NO_REGION}
+     */
+    public int findRegion(float x, float y) {
+        if (null == mTree) {
+            return NO_REGION;
+        }
+        mCandidates.clear();
+        mTree.query(x, y, mCandidates);
+        Region found = null;
+        for (int i = 0, count = mCandidates.size(); i < count; i++) {
+            Region region = mCandidates.get(i);
+            if ((null == found || region.area < found.area) && region.contains(x, y)) {
+                found = region;
+            }
+        }
+        mCandidates.clear();
+        return null == found ? NO_REGION : found.id;
+    }
+
+    /**
+     * Adds the ids of all regions containing (x, y) to out.
+     */
+    public void findRegions(float x, float y, List<Integer> out) {
+        if (null == mTree) {
+            return;
+        }
+        mCandidates.clear();
+        mTree.query(x, y, mCandidates);
+        for (int i = 0, count = mCandidates.size(); i < count; i++) {
+            Region region = mCandidates.get(i);
+            if (region.contains(x, y)) {
+                out.add(region.id);
+            }
+        }
+        mCandidates.clear();
+    }
+
+    private void add(Region region) {
+        remove(region.id);
+        mRegions.put(region.id, region);
+        if (null == mTree || !mTreeBounds.contains(region.left, region.top, region.right, region.bottom)) {
+            rebuild(region);
+        } else {
+            mTree.insert(region, region.left, region.top, region.right, region.bottom);
+        }
+    }
+
+    /**
+     * Regions outside the tree would pile up in its root, so grow the tree to cover region with
+     * room to spare and re-insert everything.
+     */
+    private void rebuild(Region region) {
+        if (null == mTree) {
+            mTreeBounds.set(region.left, region.top, region.right, region.bottom);
+        } else {
+            mTreeBounds.union(region.left, region.top, region.right, region.bottom);
+        }
+        final float padX = Math.max(1, mTreeBounds.width() / 2);
+        final float padY = Math.max(1, mTreeBounds.height() / 2);
+        mTreeBounds.inset(-padX, -padY);
+        mTree = new QuadTree<Region>(mTreeBounds.left, mTreeBounds.top, mTreeBounds.right, mTreeBounds.bottom);
+        for (Region each : mRegions.values()) {
+            mTree.insert(each, each.left, each.top, each.right, each.bottom);
+        }
+    }
+
+    private static class Region {
+        final int id;
+        final float left, top, right, bottom;
+        final float area;
+        final float[] polygon;
+
+        Region(int id, float left, float top, float right, float bottom, float[] polygon) {
+            this.id = id;
+            this.left = Math.min(left, right);
+            this.top = Math.min(top, bottom);
+            this.right = Math.max(left, right);
+            this.bottom = Math.max(top, bottom);
+            this.polygon = polygon;
+            this.area = null == polygon ? (this.right - this.left) * (this.bottom - this.top) : polygonArea(polygon);
+        }
+
+        boolean contains(float x, float y) {
+            if (x < left || x > right || y < top || y > bottom) {
+                return false;
+            }
+            if (null == polygon) {
+                return true;
+            }
+            // even-odd rule
+            boolean inside = false;
+            for (int i = 0, j = polygon.length - 2; i < polygon.length; j = i, i += 2) {
+                final float xi = polygon[i], yi = polygon[i + 1];
+                final float xj = polygon[j], yj = polygon[j + 1];
+                if ((yi > y) != (yj > y) && x < (xj - xi) * (y - yi) / (yj - yi) + xi) {
+                    inside = !inside;
+                }
+            }
+            return inside;
+        }
+
+        static float polygonArea(float[] points) {
+            float sum = 0;
+            for (int i = 0, j = points.length - 2; i < points.length; j = i, i += 2) {
+                sum += points[j] * points[i + 1] - points[i] * points[j + 1];
+            }
+            return Math.abs(sum) / 2;
+        }
+    }
+
+}
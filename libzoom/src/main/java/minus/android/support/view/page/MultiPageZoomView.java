@@ -0,0 +1,521 @@
+package minus.android.support.view.page;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.AttributeSet;
+import android.util.Log;
+import android.view.View;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import minus.android.support.view.MemoryReport;
+import minus.android.support.view.ZoomViewHelper;
+
+/**
+ * Zoomable view showing the pages of a {@link PageRenderer} stacked top to bottom and centered
+ * horizontally; the stacked layout is the intrinsic size seen by the helper. Only pages
+ * intersecting the view are rendered, on a background thread, at the power of two scale just
+ * above the draw scale. Rendered pages live in a {@link PageBitmapCache}, so memory stays
+ * bounded however long the document is; when the visible pages wouldn't fit in it together,
+ * they are rendered at a lower resolution. Until a page arrives it is drawn from another cached
+ * resolution of it, or blank.
+ * <p>
+ * The view owns its renderer: it is closed when replaced and from {@link #release()}, on the
+ * render thread after the page being rendered.
+ */
+public class MultiPageZoomView extends View implements ZoomViewHelper.IZoomView, ZoomViewHelper.IReleasable,
+        ZoomViewHelper.IMemoryReporter {
+
+    private static final String LOG_TAG = "MultiPageZoomView";
+
+    public static final int DEFAULT_PAGE_GAP = 16;
+    /**
+     * Longest side of a page bitmap; deeper zoom scales the largest render up.
+     */
+    public static final int MAX_PAGE_SIZE = 4096;
+    private static final int MIN_LEVEL = -8;
+
+    private final Matrix mMatrix = new Matrix();
+    private final Matrix mInverse = new Matrix();
+    private final RectF mVisibleRect = new RectF();
+    private final RectF mPageRect = new RectF();
+    private final float[] mMatrixValues = new float[9];
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Paint mBlankPaint = new Paint();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // main thread only
+    private final HashMap<Long, RenderTask> mPending = new HashMap<Long, RenderTask>();
+    private final HashSet<Long> mFailed = new HashSet<Long>();
+    private final HashSet<Long> mWanted = new HashSet<Long>();
+
+    private ZoomViewHelper.ScaleType mScaleType = ZoomViewHelper.ScaleType.FIT_CENTER;
+    private PageRenderer mRenderer;
+    private PageBitmapCache mCache;
+    private ExecutorService mExecutor;
+    private int mCacheBytes = (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 8);
+    private int mPageGap = DEFAULT_PAGE_GAP;
+    private int[] mPageTops = new int[0];
+    private int mWidth, mHeight;
+
+    public MultiPageZoomView(Context context) {
+        super(context);
+        mBlankPaint.setColor(0xffffffff);
+    }
+
+    public MultiPageZoomView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        mBlankPaint.setColor(0xffffffff);
+    }
+
+    public MultiPageZoomView(Context context, AttributeSet attrs, int defStyleAttr) {
+        super(context, attrs, defStyleAttr);
+        mBlankPaint.setColor(0xffffffff);
+    }
+
+    /**
+     * Replaces the renderer, closing the previous one. Call {@link ZoomViewHelper#update()}
+     * afterwards so the base matrix matches the new layout.
+     */
+    public void setPageRenderer(PageRenderer renderer) {
+        if (renderer == mRenderer) {
+            return;
+        }
+        cancelPending();
+        if (null != mRenderer) {
+            closeRenderer(mRenderer);
+        }
+        if (null != mCache) {
+            mCache.evictAll();
+        }
+        mRenderer = renderer;
+        layoutPages();
+        invalidate();
+    }
+
+    public PageRenderer getPageRenderer() {
+        return mRenderer;
+    }
+
+    /**
+     * Space between pages, in layout units. Call {@link ZoomViewHelper#update()} afterwards.
+     */
+    public void setPageGap(int gap) {
+        mPageGap = gap;
+        layoutPages();
+        invalidate();
+    }
+
+    public void setBlankPageColor(int color) {
+        mBlankPaint.setColor(color);
+        invalidate();
+    }
+
+    /**
+     * Upper bound for the bytes of rendered pages kept in memory. Defaults to 1/8 of the heap.
+     */
+    public void setCacheSize(int maxBytes) {
+        mCacheBytes = maxBytes;
+        // their results would be dropped as stale, leaving the pages blank
+        cancelPending();
+        if (null != mCache) {
+            mCache.clear();
+            mCache = null;
+        }
+        invalidate();
+    }
+
+    /**
+     * @return layout coordinates of the page's bounds
+     */
+    public RectF getPageRect(int page, RectF outRect) {
+        final int pageWidth = mRenderer.getPageWidth(page);
+        final float left = (mWidth - pageWidth) / 2f;
+        outRect.set(left, mPageTops[page], left + pageWidth, mPageTops[page] + mRenderer.getPageHeight(page));
+        return outRect;
+    }
+
+    /**
+     * @return the page at layout y, or the page above the gap y falls in
+     */
+    public int getPageAt(float y) {
+        int index = Arrays.binarySearch(mPageTops, (int) Math.floor(y));
+        if (index < 0) {
+            index = -index - 2;
+        }
+        return Math.max(0, Math.min(mPageTops.length - 1, index));
+    }
+
+    private void layoutPages() {
+        final int count = null == mRenderer ? 0 : mRenderer.getPageCount();
+        mPageTops = new int[count];
+        int width = 0, top = 0;
+        for (int page = 0; page < count; page++) {
+            mPageTops[page] = top;
+            top += mRenderer.getPageHeight(page) + (page < count - 1 ? mPageGap : 0);
+            width = Math.max(width, mRenderer.getPageWidth(page));
+        }
+        mWidth = width;
+        mHeight = top;
+    }
+
+    @Override
+    public boolean hasDrawable() {
+        return null != mRenderer && mPageTops.length > 0;
+    }
+
+    @Override
+    public ZoomViewHelper.ScaleType getScaleType() {
+        return mScaleType;
+    }
+
+    @Override
+    public void setScaleType(ZoomViewHelper.ScaleType scaleType) {
+        mScaleType = scaleType;
+    }
+
+    @Override
+    public void setImageMatrix(Matrix m) {
+        mMatrix.set(m);
+        invalidate();
+    }
+
+    @Override
+    public void getDisplayRect(RectF outRect) {
+        if (null == outRect) {
+            return;
+        }
+        outRect.set(0, 0, mWidth, mHeight);
+    }
+
+    @Override
+    public int getIntrinsicWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getIntrinsicHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public void reportMemory(MemoryReport report) {
+        if (null != mCache) {
+            report.add(MemoryReport.CACHES, mCache.size());
+            report.add(MemoryReport.POOLED, mCache.getPoolBytes());
+        }
+    }
+
+    @Override
+    public void trimMemory(int category, long bytes) {
+        if (null == mCache) {
+            return;
+        }
+        if (category == MemoryReport.POOLED) {
+            mCache.trimPool(bytes);
+        } else if (category == MemoryReport.CACHES) {
+            // the pages drawn last go only if that is not enough
+            mCache.trimToSize((int) Math.min(Integer.MAX_VALUE, bytes), mWanted);
+            // evicted pages are recycled, don't leave them in the last frame
+            invalidate();
+        }
+    }
+
+    /**
+     * Stops rendering, drops all cached pages and closes the renderer.
+     */
+    @Override
+    public void release() {
+        cancelPending();
+        if (null != mRenderer) {
+            closeRenderer(mRenderer);
+            mRenderer = null;
+        }
+        if (null != mExecutor) {
+            // still runs the close queued above
+            mExecutor.shutdown();
+            mExecutor = null;
+        }
+        if (null != mCache) {
+            mCache.clear();
+        }
+        layoutPages();
+    }
+
+    private void cancelPending() {
+        for (RenderTask task : mPending.values()) {
+            task.mFuture.cancel(false);
+        }
+        mPending.clear();
+        mFailed.clear();
+    }
+
+    /**
+     * Closes renderer on the render thread once the page it may be rendering is done, renderers
+     * like PdfRenderer can't be closed with a page open.
+     */
+    private void closeRenderer(final PageRenderer renderer) {
+        if (null == mExecutor) {
+            renderer.close();
+            return;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                renderer.close();
+            }
+        });
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        final PageRenderer renderer = mRenderer;
+        if (null == renderer || mPageTops.length == 0) {
+            return;
+        }
+        if (null == mCache) {
+            mCache = new PageBitmapCache(mCacheBytes);
+        }
+        if (null == mExecutor) {
+            // renderers like PdfRenderer handle one page at a time
+            mExecutor = Executors.newSingleThreadExecutor(new RenderThreadFactory());
+        }
+
+        mVisibleRect.set(0, 0, getWidth() - getPaddingLeft() - getPaddingRight(),
+                getHeight() - getPaddingTop() - getPaddingBottom());
+        if (!mMatrix.invert(mInverse)) {
+            return;
+        }
+        mInverse.mapRect(mVisibleRect);
+        final float drawScale = getMatrixScale();
+        final int levelShift = levelShiftToFit(renderer, drawScale);
+
+        mWanted.clear();
+        final int saveCount = canvas.save();
+        canvas.translate(getPaddingLeft(), getPaddingTop());
+        canvas.concat(mMatrix);
+        for (int page = getPageAt(mVisibleRect.top); page < mPageTops.length
+                && mPageTops[page] <= mVisibleRect.bottom; page++) {
+            getPageRect(page, mPageRect);
+            if (!RectF.intersects(mPageRect, mVisibleRect)) {
+                continue;
+            }
+            final int level = Math.max(MIN_LEVEL, levelFor(renderer, page, drawScale) - levelShift);
+            final long key = PageBitmapCache.key(page, level);
+            mWanted.add(key);
+            Bitmap bitmap = mCache.get(key);
+            if (null == bitmap) {
+                requestPage(renderer, key);
+                bitmap = findFallback(page, level);
+            }
+            if (null != bitmap) {
+                canvas.drawBitmap(bitmap, null, mPageRect, mPaint);
+            } else {
+                canvas.drawRect(mPageRect, mBlankPaint);
+            }
+        }
+        canvas.restoreToCount(saveCount);
+        // fallbacks were looked up in between, make this frame's pages the last to be evicted
+        for (Long key : mWanted) {
+            mCache.get(key);
+        }
+        cancelUnwantedPages();
+    }
+
+    /**
+     * @return how many levels below their draw level the visible pages have to be rendered so
+     * they fit in the cache together; a page evicted right after it arrives would be rendered
+     * again on every frame
+     */
+    private int levelShiftToFit(PageRenderer renderer, float drawScale) {
+        final long budget = mCache.maxSize();
+        for (int shift = 0; ; shift++) {
+            long bytes = 0;
+            boolean lowest = true;
+            for (int page = getPageAt(mVisibleRect.top); page < mPageTops.length
+                    && mPageTops[page] <= mVisibleRect.bottom; page++) {
+                getPageRect(page, mPageRect);
+                if (!RectF.intersects(mPageRect, mVisibleRect)) {
+                    continue;
+                }
+                final int level = Math.max(MIN_LEVEL, levelFor(renderer, page, drawScale) - shift);
+                lowest &= level == MIN_LEVEL;
+                bytes += 4L * renderWidth(renderer, page, level) * renderHeight(renderer, page, level);
+            }
+            if (bytes <= budget || lowest) {
+                return shift;
+            }
+        }
+    }
+
+    static int renderWidth(PageRenderer renderer, int page, int level) {
+        return Math.max(1, (int) Math.ceil(renderer.getPageWidth(page) * Math.pow(2, level)));
+    }
+
+    static int renderHeight(PageRenderer renderer, int page, int level) {
+        return Math.max(1, (int) Math.ceil(renderer.getPageHeight(page) * Math.pow(2, level)));
+    }
+
+    /**
+     * @return the log2 of the smallest power of two scale not below drawScale, limited so the
+     * page bitmap stays within {@link #MAX_PAGE_SIZE}
+     */
+    static int levelFor(PageRenderer renderer, int page, float drawScale) {
+        final int size = Math.max(1, Math.max(renderer.getPageWidth(page), renderer.getPageHeight(page)));
+        int level = drawScale > 0f ? (int) Math.ceil(Math.log(drawScale) / Math.log(2) - 1e-4) : 0;
+        final int maxLevel = (int) Math.floor(Math.log((double) MAX_PAGE_SIZE / size) / Math.log(2));
+        return Math.max(MIN_LEVEL, Math.min(level, maxLevel));
+    }
+
+    /**
+     * @return the cached render of page closest to level, preferring sharper ones
+     */
+    private Bitmap findFallback(int page, int level) {
+        for (int delta = 1; delta <= 2 * -MIN_LEVEL; delta++) {
+            Bitmap bitmap = mCache.get(PageBitmapCache.key(page, level + delta));
+            if (null == bitmap && level - delta >= MIN_LEVEL) {
+                bitmap = mCache.get(PageBitmapCache.key(page, level - delta));
+            }
+            if (null != bitmap) {
+                return bitmap;
+            }
+        }
+        return null;
+    }
+
+    private float getMatrixScale() {
+        mMatrix.getValues(mMatrixValues);
+        final float scaleX = mMatrixValues[Matrix.MSCALE_X];
+        final float skewY = mMatrixValues[Matrix.MSKEW_Y];
+        return (float) Math.sqrt(scaleX * scaleX + skewY * skewY);
+    }
+
+    private void requestPage(PageRenderer renderer, long key) {
+        if (mPending.containsKey(key) || mFailed.contains(key)) {
+            return;
+        }
+        RenderTask task = new RenderTask(renderer, mCache, key);
+        mPending.put(key, task);
+        task.mFuture = mExecutor.submit(task);
+    }
+
+    /**
+     * Drops queued renders of pages that were not asked for in the last frame.
+     */
+    private void cancelUnwantedPages() {
+        Iterator<Map.Entry<Long, RenderTask>> it = mPending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, RenderTask> entry = it.next();
+            if (!mWanted.contains(entry.getKey())) {
+                it.remove();
+                entry.getValue().mFuture.cancel(false);
+            }
+        }
+    }
+
+    private void onPageRendered(RenderTask task, Bitmap bitmap, boolean failed) {
+        if (task.mTaskRenderer != mRenderer || task.mTaskCache != mCache) {
+            // stale result, the renderer changed or the view was released meanwhile
+            if (null != bitmap) {
+                task.mTaskCache.recycle(bitmap);
+            }
+            return;
+        }
+
+        final boolean wasPending = mPending.get(task.mKey) == task;
+        if (wasPending) {
+            mPending.remove(task.mKey);
+        }
+        if (null != bitmap && !mWanted.contains(task.mKey)) {
+            // scrolled away meanwhile, caching it could evict a page on screen
+            mCache.recycle(bitmap);
+        } else if (null != bitmap) {
+            mCache.put(task.mKey, bitmap);
+            invalidate();
+        } else if (failed && wasPending) {
+            // don't retry it on every frame
+            mFailed.add(task.mKey);
+        }
+    }
+
+    private class RenderTask implements Runnable {
+
+        private final PageRenderer mTaskRenderer;
+        private final PageBitmapCache mTaskCache;
+        private final long mKey;
+        private Future<?> mFuture;
+
+        RenderTask(PageRenderer renderer, PageBitmapCache cache, long key) {
+            mTaskRenderer = renderer;
+            mTaskCache = cache;
+            mKey = key;
+        }
+
+        @Override
+        public void run() {
+            final int page = PageBitmapCache.page(mKey);
+            final int level = PageBitmapCache.level(mKey);
+            Bitmap bitmap = null;
+            boolean failed = false;
+            try {
+                bitmap = mTaskCache.obtain(renderWidth(mTaskRenderer, page, level),
+                        renderHeight(mTaskRenderer, page, level));
+                mTaskRenderer.renderPage(page, bitmap);
+            } catch (IOException e) {
+                failed = true;
+                Log.w(LOG_TAG, "Unable to render page " + page, e);
+            } catch (RuntimeException e) {
+                // the Future would swallow it, leaving the page pending for good
+                failed = true;
+                Log.w(LOG_TAG, "Unable to render page " + page, e);
+            } catch (OutOfMemoryError e) {
+                failed = true;
+                Log.w(LOG_TAG, "Unable to render page " + page + " at level " + level, e);
+            }
+            if (failed && null != bitmap) {
+                mTaskCache.recycle(bitmap);
+                bitmap = null;
+            }
+
+            final Bitmap result = bitmap;
+            final boolean resultFailed = failed;
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onPageRendered(RenderTask.this, result, resultFailed);
+                }
+            });
+        }
+    }
+
+    private static class RenderThreadFactory implements ThreadFactory {
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, LOG_TAG + "-render");
+        }
+    }
+
+}
@@ -0,0 +1,197 @@
+package minus.android.support.view.page;
+
+import android.graphics.Bitmap;
+import android.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Size bounded LRU cache of rendered pages, keyed by {@link #key(int, int)}. Evicted bitmaps go
+ * to a small pool that {@link #obtain(int, int)} reuses for renders of the same size, so
+ * scrolling through a long document doesn't keep allocating page bitmaps. The cache is
+ * main-thread only; the pool may be used from any thread.
+ */
+public class PageBitmapCache {
+
+    public static final int DEFAULT_POOL_SIZE = 4;
+
+    private final LruCache<Long, Bitmap> mPages;
+    private final ArrayList<Bitmap> mPool = new ArrayList<Bitmap>();
+    private final int mPoolSize;
+
+    /**
+     * @param maxBytes upper bound for the byte count of all cached bitmaps, the pool not included
+     */
+    public PageBitmapCache(int maxBytes) {
+        this(maxBytes, DEFAULT_POOL_SIZE);
+    }
+
+    public PageBitmapCache(int maxBytes, int poolSize) {
+        mPoolSize = poolSize;
+        mPages = new LruCache<Long, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(Long key, Bitmap value) {
+                return value.getByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, Long key, Bitmap oldValue, Bitmap newValue) {
+                if (oldValue != newValue) {
+                    recycle(oldValue);
+                }
+            }
+        };
+    }
+
+    /**
+     * Packs a page and a render level, the log2 of the render scale, into a cache key.
+     */
+    public static long key(int page, int level) {
+        return ((long) page << 8) | (level & 0xff);
+    }
+
+    public static int page(long key) {
+        return (int) (key >>> 8);
+    }
+
+    public static int level(long key) {
+        return (byte) (key & 0xff);
+    }
+
+    public Bitmap get(long key) {
+        return mPages.get(key);
+    }
+
+    public void put(long key, Bitmap page) {
+        mPages.put(key, page);
+    }
+
+    public void evictAll() {
+        mPages.evictAll();
+    }
+
+    /**
+     * Evicts the least recently used pages until at most maxBytes are cached. The evicted
+     * bitmaps are recycled rather than pooled.
+     */
+    public void trimToSize(int maxBytes) {
+        trimToSize(maxBytes, Collections.<Long>emptySet());
+    }
+
+    /**
+     * Like {@link #trimToSize(int)}, but evicts the pages in keep only if the others don't
+     * free enough.
+     */
+    public void trimToSize(int maxBytes, Set<Long> keep) {
+        final long pooled = getPoolBytes();
+        // LruCache#trimToSize is API 17
+        final Map<Long, Bitmap> snapshot = mPages.snapshot();
+        for (Long key : snapshot.keySet()) {
+            if (mPages.size() <= maxBytes) {
+                break;
+            }
+            if (!keep.contains(key)) {
+                mPages.remove(key);
+            }
+        }
+        for (Long key : snapshot.keySet()) {
+            if (mPages.size() <= maxBytes) {
+                break;
+            }
+            mPages.remove(key);
+        }
+        trimPool(pooled);
+    }
+
+    /**
+     * @return byte count of all cached pages
+     */
+    public int size() {
+        return mPages.size();
+    }
+
+    public int maxSize() {
+        return mPages.maxSize();
+    }
+
+    /**
+     * @return a pooled bitmap of that size, cleared to white, or a new one
+     */
+    public Bitmap obtain(int width, int height) {
+        Bitmap bitmap = null;
+        synchronized (mPool) {
+            for (int i = mPool.size() - 1; i >= 0; i--) {
+                Bitmap pooled = mPool.get(i);
+                if (pooled.getWidth() == width && pooled.getHeight() == height) {
+                    bitmap = mPool.remove(i);
+                    break;
+                }
+            }
+        }
+        if (null == bitmap) {
+            bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+        bitmap.eraseColor(0xffffffff);
+        return bitmap;
+    }
+
+    /**
+     * Hands a bitmap that is no longer drawn back to the pool, recycling it if the pool is full.
+     */
+    public void recycle(Bitmap bitmap) {
+        if (bitmap.isRecycled()) {
+            return;
+        }
+        synchronized (mPool) {
+            if (mPool.size() < mPoolSize) {
+                mPool.add(bitmap);
+                return;
+            }
+        }
+        bitmap.recycle();
+    }
+
+    /**
+     * @return byte count of the pooled bitmaps
+     */
+    public long getPoolBytes() {
+        long bytes = 0;
+        synchronized (mPool) {
+            for (Bitmap bitmap : mPool) {
+                bytes += bitmap.getByteCount();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Recycles pooled bitmaps, the longest pooled first, until at most maxBytes are pooled.
+     */
+    public void trimPool(long maxBytes) {
+        synchronized (mPool) {
+            long bytes = getPoolBytes();
+            while (bytes > maxBytes && !mPool.isEmpty()) {
+                Bitmap bitmap = mPool.remove(0);
+                bytes -= bitmap.getByteCount();
+                bitmap.recycle();
+            }
+        }
+    }
+
+    /**
+     * Empties the cache and recycles the pool.
+     */
+    public void clear() {
+        mPages.evictAll();
+        synchronized (mPool) {
+            for (Bitmap bitmap : mPool) {
+                bitmap.recycle();
+            }
+            mPool.clear();
+        }
+    }
+
+}
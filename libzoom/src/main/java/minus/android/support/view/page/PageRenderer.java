@@ -0,0 +1,32 @@
+package minus.android.support.view.page;
+
+import android.graphics.Bitmap;
+
+import java.io.IOException;
+
+/**
+ * Supplies the pages shown by a {@link MultiPageZoomView}, e.g. backed by
+ * {@code android.graphics.pdf.PdfRenderer}. Page sizes are in layout units; the view renders a
+ * page into bitmaps of that size times a power of two.
+ */
+public interface PageRenderer {
+
+    int getPageCount();
+
+    int getPageWidth(int page);
+
+    int getPageHeight(int page);
+
+    /**
+     * Draws the whole page scaled to fill bitmap, which is cleared to white. Called on a single
+     * worker thread, never for two pages at once.
+     */
+    void renderPage(int page, Bitmap bitmap) throws IOException;
+
+    /**
+     * Called on the worker thread after the last {@link #renderPage} call, or on the main
+     * thread if no page was requested yet.
+     */
+    void close();
+
+}
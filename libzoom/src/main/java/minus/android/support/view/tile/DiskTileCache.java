@@ -0,0 +1,286 @@
+package minus.android.support.view.tile;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local cache of encoded tiles for one source, see {@link HttpTileSource} and
+ * {@link RegionDecoderTileSource}. Tiles are appended to a single data file and located
+ * through an in-memory index; once the file would grow past the size limit it is cleared and
+ * starts over. Safe to use from several threads.
+ * <p>
+ * Given a fingerprint of the source content, the index is written next to the data file as
+ * tiles are added and on {@link #close()}, and read back by the next instance, so tiles cached
+ * before the process was killed are found again, e.g. when a large image is reopened. The
+ * fingerprint should change whenever the tiles do: {@link #fingerprint(File)} for a local
+ * file, the URL template plus a content version or ETag for a server. A different one discards
+ * the cached tiles. Tiles added since the index was last written are lost, and an index that
+ * doesn't match the data file is ignored.
+ */
+public class DiskTileCache {
+
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    private static final int INDEX_MAGIC = 0x5A564958; // "ZVIX"
+    private static final int INDEX_VERSION = 1;
+    // writes the index once the unsaved puts reach this fraction of it, plus one
+    private static final int INDEX_SAVE_FRACTION = 8;
+
+    private final long mMaxBytes;
+    private final HashMap<Long, long[]> mIndex = new HashMap<Long, long[]>();
+    private final File mIndexFile;
+    private final String mFingerprint;
+    private RandomAccessFile mData;
+    private int mUnsavedPuts;
+    // rewrites the index after removals, its thread exits when idle
+    private final ThreadPoolExecutor mIndexWriter = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
+    private boolean mIndexSaveQueued;
+    private final Runnable mSaveIndex = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (DiskTileCache.this) {
+                mIndexSaveQueued = false;
+                if (null != mData) {
+                    saveIndexQuietly();
+                }
+            }
+        }
+    };
+
+    /**
+     * @param directory where to keep the files, e.g. {@code Context.getCacheDir()}
+     * @param name      identifies the source, used as file name
+     */
+    public DiskTileCache(File directory, String name) throws IOException {
+        this(directory, name, DEFAULT_MAX_BYTES);
+    }
+
+    public DiskTileCache(File directory, String name, long maxBytes) throws IOException {
+        this(directory, name, maxBytes, null);
+    }
+
+    /**
+     * @param fingerprint identifies the source content, null to start empty and not persist
+     *                    the index
+     */
+    public DiskTileCache(File directory, String name, long maxBytes, String fingerprint) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        mMaxBytes = maxBytes;
+        mFingerprint = fingerprint;
+        mIndexWriter.allowCoreThreadTimeOut(true);
+        mIndexFile = new File(directory, name + ".index");
+        mData = new RandomAccessFile(new File(directory, name + ".tiles"), "rw");
+        if (null == fingerprint || !loadIndex()) {
+            mIndex.clear();
+            mData.setLength(0);
+            if (mIndexFile.exists() && !mIndexFile.delete()) {
+                throw new IOException("Unable to delete " + mIndexFile);
+            }
+        }
+    }
+
+    /**
+     * @return a fingerprint of a local source from its path, size and modification time
+     */
+    public static String fingerprint(File source) {
+        return source.getAbsolutePath() + ':' + source.length() + ':' + source.lastModified();
+    }
+
+    /**
+     * @return the encoded tile, or null if it is not cached
+     */
+    public synchronized byte[] get(int level, int column, int row) throws IOException {
+        final long[] entry = mIndex.get(TileCache.key(level, column, row));
+        if (null == entry || null == mData) {
+            return null;
+        }
+        final byte[] bytes = new byte[(int) entry[1]];
+        mData.seek(entry[0]);
+        mData.readFully(bytes);
+        return bytes;
+    }
+
+    public synchronized void put(int level, int column, int row, byte[] bytes) throws IOException {
+        if (null == mData || bytes.length > mMaxBytes) {
+            return;
+        }
+        long offset = mData.length();
+        if (offset + bytes.length > mMaxBytes) {
+            clear();
+            offset = 0;
+        }
+        mData.seek(offset);
+        mData.write(bytes);
+        mIndex.put(TileCache.key(level, column, row), new long[]{offset, bytes.length});
+        if (null != mFingerprint && ++mUnsavedPuts > mIndex.size() / INDEX_SAVE_FRACTION) {
+            // the process is usually killed rather than closed
+            saveIndexQuietly();
+        }
+    }
+
+    /**
+     * Forgets a tile. Its bytes stay in the data file until the next {@link #clear()}. Only the
+     * in-memory index is touched, the saved one is rewritten on a background thread, so this
+     * can be called from the main thread.
+     */
+    public synchronized void remove(int level, int column, int row) {
+        if (null != mIndex.remove(TileCache.key(level, column, row)) && null != mFingerprint
+                && !mIndexSaveQueued) {
+            // the saved index must not bring it back, one rewrite covers the removals until then
+            mIndexSaveQueued = true;
+            try {
+                mIndexWriter.execute(mSaveIndex);
+            } catch (RejectedExecutionException e) {
+                // closed
+                mIndexSaveQueued = false;
+            }
+        }
+    }
+
+    public synchronized boolean contains(int level, int column, int row) {
+        return mIndex.containsKey(TileCache.key(level, column, row));
+    }
+
+    public synchronized void clear() throws IOException {
+        mIndex.clear();
+        // its entries would point into data written from now on
+        mIndexFile.delete();
+        if (null != mData) {
+            mData.setLength(0);
+        }
+    }
+
+    /**
+     * Writes the index now, e.g. when the app goes to the background.
+     */
+    public synchronized void flush() {
+        if (null != mData && null != mFingerprint) {
+            saveIndexQuietly();
+        }
+    }
+
+    /**
+     * @return bytes used on disk
+     */
+    public synchronized long size() throws IOException {
+        return null == mData ? 0 : mData.length();
+    }
+
+    /**
+     * Writes the index if there is a fingerprint, then closes the data file.
+     */
+    public synchronized void close() {
+        mIndexWriter.shutdown();
+        if (null != mData) {
+            if (null != mFingerprint) {
+                saveIndexQuietly();
+            }
+            try {
+                mData.close();
+            } catch (IOException e) {
+                // ignore, nothing left to release
+            }
+            mData = null;
+        }
+    }
+
+    /**
+     * Reads the index written by {@link #saveIndex()}. Data appended after it was written is
+     * cut off.
+     *
+     * @return false if there is none or it doesn't match the fingerprint or the data file
+     */
+    private boolean loadIndex() {
+        if (!mIndexFile.isFile()) {
+            return false;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mIndexFile)));
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION
+                    || !mFingerprint.equals(in.readUTF())) {
+                return false;
+            }
+            final long dataLength = in.readLong();
+            if (dataLength > mData.length() || dataLength > mMaxBytes) {
+                return false;
+            }
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final long key = in.readLong();
+                final long offset = in.readLong();
+                final long length = in.readLong();
+                if (offset < 0 || length < 0 || offset + length > dataLength) {
+                    return false;
+                }
+                mIndex.put(key, new long[]{offset, length});
+            }
+            mData.setLength(dataLength);
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (null != in) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore, it was only read
+                }
+            }
+        }
+    }
+
+    private void saveIndexQuietly() {
+        try {
+            saveIndex();
+            mUnsavedPuts = 0;
+        } catch (IOException e) {
+            // the next instance starts empty
+            mIndexFile.delete();
+        }
+    }
+
+    /**
+     * Writes the index to a temporary file and renames it, so a partly written index is never
+     * read.
+     */
+    private void saveIndex() throws IOException {
+        final File temp = new File(mIndexFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(INDEX_VERSION);
+            out.writeUTF(mFingerprint);
+            out.writeLong(mData.length());
+            out.writeInt(mIndex.size());
+            for (Map.Entry<Long, long[]> entry : mIndex.entrySet()) {
+                out.writeLong(entry.getKey());
+                out.writeLong(entry.getValue()[0]);
+                out.writeLong(entry.getValue()[1]);
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(mIndexFile)) {
+            temp.delete();
+            throw new IOException("Unable to write " + mIndexFile);
+        }
+    }
+
+}
@@ -0,0 +1,412 @@
+package minus.android.support.view.tile;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fetches tiles over HTTP. The URL of a tile is built from a template with {@code {level}},
+ * {@code {x}} and {@code {y}} placeholders, e.g.
+ * {@code https://tiles.example.com/photo/{level}/{x}_{y}.jpg}.
+ * <ul>
+ * <li>Concurrent requests for the same tile share one download.</li>
+ * <li>At most {@link #setMaxConnectionsPerHost(int)} downloads run against a host at once.</li>
+ * <li>{@link #cancelTile(int, int, int, Object)} withdraws one request, a download is aborted
+ * once no request is waiting for it anymore. The connection is torn down on a worker thread,
+ * so cancelling from the main thread does no network I/O.</li>
+ * <li>Downloaded bytes are written through to an optional {@link DiskTileCache}, which is
+ * consulted before going to the network. {@link #invalidateTile(int, int, int)} drops a tile
+ * from it.</li>
+ * </ul>
+ * A 404 response means there is no tile at that position.
+ */
+public class HttpTileSource implements TileSource {
+
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 4;
+    public static final int DEFAULT_TIMEOUT = 15000;
+
+    private final String mUrlTemplate;
+    private final int mWidth, mHeight, mTileSize, mLevelCount;
+
+    private final ConcurrentHashMap<Long, Download> mDownloads = new ConcurrentHashMap<Long, Download>();
+    private final ConcurrentHashMap<String, Semaphore> mHostPermits = new ConcurrentHashMap<String, Semaphore>();
+    // disconnects aborted downloads, its thread exits when idle
+    private final ThreadPoolExecutor mDisconnector = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>());
+
+    private volatile int mMaxConnectionsPerHost = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+    private volatile int mTimeout = DEFAULT_TIMEOUT;
+    private volatile DiskTileCache mDiskCache;
+
+    /**
+     * @param urlTemplate tile URL with {level}, {x} and {y} placeholders
+     */
+    public HttpTileSource(String urlTemplate, int width, int height, int tileSize, int levelCount) {
+        mUrlTemplate = urlTemplate;
+        mWidth = width;
+        mHeight = height;
+        mTileSize = tileSize;
+        mLevelCount = levelCount;
+        mDisconnector.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Takes effect for hosts not contacted yet.
+     */
+    public void setMaxConnectionsPerHost(int maxConnections) {
+        if (maxConnections < 1)
+            throw new IllegalArgumentException("maxConnections must be positive");
+        mMaxConnectionsPerHost = maxConnections;
+    }
+
+    /**
+     * Connect and read timeout in milliseconds.
+     */
+    public void setTimeout(int milliseconds) {
+        mTimeout = milliseconds;
+    }
+
+    /**
+     * Write-through cache for downloaded tiles, closed together with this source.
+     */
+    public void setDiskCache(DiskTileCache diskCache) {
+        mDiskCache = diskCache;
+    }
+
+    public DiskTileCache getDiskCache() {
+        return mDiskCache;
+    }
+
+    @Override
+    public int getWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public int getTileSize() {
+        return mTileSize;
+    }
+
+    @Override
+    public int getLevelCount() {
+        return mLevelCount;
+    }
+
+    @Override
+    public Bitmap decodeTile(int level, int column, int row, Object request) throws IOException {
+        byte[] bytes = fetchTile(level, column, row, request);
+        if (null == bytes) {
+            return null;
+        }
+        return BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
+    }
+
+    public String getTileUrl(int level, int column, int row) {
+        return mUrlTemplate.replace("{level}", String.valueOf(level))
+                .replace("{x}", String.valueOf(column))
+                .replace("{y}", String.valueOf(row));
+    }
+
+    /**
+     * Like {@link #fetchTile(int, int, int, Object)}, for a request nobody cancels.
+     */
+    public byte[] fetchTile(int level, int column, int row) throws IOException {
+        return fetchTile(level, column, row, new Object());
+    }
+
+    /**
+     * Returns the encoded tile from the disk cache or the network, joining a download of the
+     * same tile that is already running.
+     *
+     * @param request identifies this call to {@link #cancelTile(int, int, int, Object)}
+     * @return the encoded tile, or null if the server has none at that position
+     * @throws InterruptedIOException if the download was cancelled
+     */
+    public byte[] fetchTile(int level, int column, int row, Object request) throws IOException {
+        final DiskTileCache diskCache = mDiskCache;
+        if (null != diskCache) {
+            byte[] cached = diskCache.get(level, column, row);
+            if (null != cached) {
+                return cached;
+            }
+        }
+
+        final Long key = TileCache.key(level, column, row);
+        final Download download = new Download(request, mDisconnector);
+        Download running = mDownloads.putIfAbsent(key, download);
+        while (null != running) {
+            if (running.join(request)) {
+                return running.await(request);
+            }
+            // raced with a cancellation that already gave up on it, start over
+            mDownloads.remove(key, running);
+            running = mDownloads.putIfAbsent(key, download);
+        }
+
+        final String tileUrl = getTileUrl(level, column, row);
+        try {
+            byte[] bytes = download(tileUrl, download);
+            if (null != bytes && null != diskCache) {
+                diskCache.put(level, column, row, bytes);
+                // invalidated while downloading, before or after the put
+                if (download.isInvalidated()) {
+                    diskCache.remove(level, column, row);
+                }
+            }
+            download.finish(bytes, null);
+            return bytes;
+        } catch (IOException e) {
+            download.finish(null, e);
+            throw e;
+        } finally {
+            mDownloads.remove(key, download);
+            if (!download.isFinished()) {
+                // a RuntimeException or Error, the joined requests must not wait forever
+                download.finish(null, new IOException("Failed to download " + tileUrl));
+            }
+        }
+    }
+
+    @Override
+    public void cancelTile(int level, int column, int row, Object request) {
+        // a request cancelled before it joined keeps the download going, it is only wasted
+        Download download = mDownloads.get(TileCache.key(level, column, row));
+        if (null != download) {
+            download.leave(request);
+        }
+    }
+
+    /**
+     * Drops the tile from the disk cache. A download of it that is already running is left to
+     * the requests waiting for it, but its bytes are not cached and later requests download
+     * the tile again.
+     */
+    @Override
+    public void invalidateTile(int level, int column, int row) {
+        final Download running = mDownloads.remove(TileCache.key(level, column, row));
+        if (null != running) {
+            running.invalidate();
+        }
+        final DiskTileCache diskCache = mDiskCache;
+        if (null != diskCache) {
+            diskCache.remove(level, column, row);
+        }
+    }
+
+    @Override
+    public void close() {
+        for (Download download : mDownloads.values()) {
+            download.abort();
+        }
+        // still runs the disconnects queued above
+        mDisconnector.shutdown();
+        DiskTileCache diskCache = mDiskCache;
+        if (null != diskCache) {
+            diskCache.close();
+        }
+    }
+
+    /**
+     * @return number of downloads currently running or waiting for a connection
+     */
+    public int getDownloadCount() {
+        return mDownloads.size();
+    }
+
+    private byte[] download(String tileUrl, Download download) throws IOException {
+        final URL url = new URL(tileUrl);
+        final Semaphore permits = getHostPermits(url.getHost() + ':' + url.getPort());
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted waiting for a connection to " + url.getHost());
+        }
+
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) url.openConnection();
+            connection.setConnectTimeout(mTimeout);
+            connection.setReadTimeout(mTimeout);
+            if (!download.attach(connection)) {
+                throw new InterruptedIOException("Cancelled " + tileUrl);
+            }
+
+            final int code = connection.getResponseCode();
+            if (code == HttpURLConnection.HTTP_NOT_FOUND) {
+                return null;
+            }
+            if (code != HttpURLConnection.HTTP_OK) {
+                throw new IOException("HTTP " + code + " for " + tileUrl);
+            }
+
+            InputStream in = connection.getInputStream();
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(1024, connection.getContentLength()));
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+                return out.toByteArray();
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            if (download.isAborted()) {
+                throw new InterruptedIOException("Cancelled " + tileUrl);
+            }
+            throw e;
+        } finally {
+            if (null != connection) {
+                connection.disconnect();
+            }
+            permits.release();
+        }
+    }
+
+    private Semaphore getHostPermits(String host) {
+        Semaphore permits = mHostPermits.get(host);
+        if (null == permits) {
+            Semaphore created = new Semaphore(mMaxConnectionsPerHost);
+            permits = mHostPermits.putIfAbsent(host, created);
+            if (null == permits) {
+                permits = created;
+            }
+        }
+        return permits;
+    }
+
+    /**
+     * One running download and the requests waiting for it.
+     */
+    private static class Download {
+
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        // guarded by this, starts with the request that runs the download
+        private final HashSet<Object> mRequests = new HashSet<Object>();
+        private final Executor mDisconnector;
+        private volatile boolean mAborted;
+        private volatile boolean mInvalidated;
+        private HttpURLConnection mConnection;
+        private byte[] mBytes;
+        private IOException mError;
+
+        Download(Object request, Executor disconnector) {
+            mRequests.add(request);
+            mDisconnector = disconnector;
+        }
+
+        /**
+         * @return false if the download is already being aborted
+         */
+        synchronized boolean join(Object request) {
+            if (mAborted) {
+                return false;
+            }
+            mRequests.add(request);
+            return true;
+        }
+
+        /**
+         * Withdraws a request that joined, aborting the download if it was the last one.
+         */
+        void leave(Object request) {
+            synchronized (this) {
+                if (!mRequests.remove(request) || !mRequests.isEmpty()) {
+                    return;
+                }
+            }
+            abort();
+        }
+
+        void abort() {
+            final HttpURLConnection connection;
+            synchronized (this) {
+                mAborted = true;
+                connection = mConnection;
+            }
+            if (null == connection) {
+                return;
+            }
+            // unblocks the thread reading from it, off the caller's thread as it does network I/O
+            final Runnable disconnect = new Runnable() {
+                @Override
+                public void run() {
+                    connection.disconnect();
+                }
+            };
+            try {
+                mDisconnector.execute(disconnect);
+            } catch (RejectedExecutionException e) {
+                // the source is closed, nothing left to offload to
+                disconnect.run();
+            }
+        }
+
+        boolean isAborted() {
+            return mAborted;
+        }
+
+        void invalidate() {
+            mInvalidated = true;
+        }
+
+        boolean isInvalidated() {
+            return mInvalidated;
+        }
+
+        synchronized boolean attach(HttpURLConnection connection) {
+            mConnection = connection;
+            return !mAborted;
+        }
+
+        boolean isFinished() {
+            return mDone.getCount() == 0;
+        }
+
+        void finish(byte[] bytes, IOException error) {
+            synchronized (this) {
+                mBytes = bytes;
+                mError = error;
+                mConnection = null;
+            }
+            mDone.countDown();
+        }
+
+        byte[] await(Object request) throws IOException {
+            try {
+                mDone.await();
+            } catch (InterruptedException e) {
+                leave(request);
+                throw new InterruptedIOException("Interrupted waiting for a tile");
+            }
+            synchronized (this) {
+                if (null != mError) {
+                    throw mError;
+                }
+                return mBytes;
+            }
+        }
+    }
+
+}
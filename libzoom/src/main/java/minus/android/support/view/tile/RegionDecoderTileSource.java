@@ -0,0 +1,334 @@
+package minus.android.support.view.tile;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+
+/**
+ * Cuts tiles out of a plain JPEG or PNG with {@link BitmapRegionDecoder}. Level n is decoded
+ * with an inSampleSize of 2^n, down to the level where the whole image fits in one tile.
+ * <p>
+ * A region decoder handles one call at a time, so a single instance keeps all but one decode
+ * thread waiting. This source keeps a pool of decoders over the same file, created on demand up
+ * to {@link #getMaxDecoders()}, and hands each {@link #decodeTile} call an idle one. Size the
+ * pool with {@link #poolSizeFor(long, int, long)}; more decoders than decode threads are never
+ * used.
+ * Throughput and queue depth are counted for tuning.
+ * <p>
+ * With a {@link DiskTileCache}, decoded tiles are also written to disk, JPEG compressed or PNG
+ * if they have alpha, and read from there instead of the image when it is opened again. Give
+ * the cache {@link DiskTileCache#fingerprint(File)} of the image so an edited file isn't
+ * served from it.
+ */
+public class RegionDecoderTileSource implements TileSource {
+
+    public static final int DEFAULT_TILE_SIZE = 512;
+
+    private final String mPath;
+    private final FileDescriptor mFileDescriptor;
+    private final int mWidth, mHeight, mTileSize, mLevelCount;
+    private final int mMaxDecoders;
+    private volatile DiskTileCache mDiskCache;
+    // descriptors dup'd from mFileDescriptor share its file offset, so decoders over it are
+    // created one at a time
+    private final Object mDescriptorLock = new Object();
+
+    // guarded by this
+    private final ArrayList<BitmapRegionDecoder> mIdle = new ArrayList<BitmapRegionDecoder>();
+    private int mDecoderCount;
+    private boolean mClosed;
+    private int mQueueDepth, mMaxQueueDepth;
+    private long mDecodedTiles, mDecodeNanos;
+    private long mFirstDecodeStart, mLastDecodeEnd;
+
+    public RegionDecoderTileSource(String path) throws IOException {
+        this(path, null, DEFAULT_TILE_SIZE, poolSizeFor(Runtime.getRuntime().maxMemory() / 8,
+                DEFAULT_TILE_SIZE, new File(path).length()));
+    }
+
+    public RegionDecoderTileSource(String path, int tileSize, int maxDecoders) throws IOException {
+        this(path, null, tileSize, maxDecoders);
+    }
+
+    /**
+     * @param fd seekable descriptor of the image, kept open by the caller until {@link #close()}
+     */
+    public RegionDecoderTileSource(FileDescriptor fd, int tileSize, int maxDecoders) throws IOException {
+        this(null, fd, tileSize, maxDecoders);
+    }
+
+    private RegionDecoderTileSource(String path, FileDescriptor fd, int tileSize, int maxDecoders)
+            throws IOException {
+        if (tileSize < 1)
+            throw new IllegalArgumentException("tileSize must be positive");
+        if (maxDecoders < 1)
+            throw new IllegalArgumentException("maxDecoders must be positive");
+        mPath = path;
+        mFileDescriptor = fd;
+        mTileSize = tileSize;
+        mMaxDecoders = maxDecoders;
+
+        // the first decoder reads the size and stays in the pool
+        BitmapRegionDecoder decoder = newDecoder();
+        mWidth = decoder.getWidth();
+        mHeight = decoder.getHeight();
+        mIdle.add(decoder);
+        mDecoderCount = 1;
+
+        int levels = 1;
+        while (((Math.max(mWidth, mHeight) - 1) >> (levels - 1)) >= tileSize) {
+            levels++;
+        }
+        mLevelCount = levels;
+    }
+
+    /**
+     * Number of decoders worth keeping: one per core, but no more than memoryBudget allows. Each
+     * decoder keeps its own copy of the encoded image in native memory, plus its index for a
+     * JPEG, and one busy with a tile holds roughly two tiles worth of ARGB_8888 pixels, the
+     * result and its working buffers.
+     *
+     * @param encodedBytes size of the image file
+     */
+    public static int poolSizeFor(long memoryBudget, int tileSize, long encodedBytes) {
+        final long perDecoder = encodedBytes + 2L * 4 * tileSize * tileSize;
+        final long byMemory = memoryBudget / perDecoder;
+        return (int) Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), byMemory));
+    }
+
+    @Override
+    public int getWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public int getTileSize() {
+        return mTileSize;
+    }
+
+    @Override
+    public int getLevelCount() {
+        return mLevelCount;
+    }
+
+    public int getMaxDecoders() {
+        return mMaxDecoders;
+    }
+
+    /**
+     * Write-through cache for decoded tiles, closed together with this source.
+     */
+    public void setDiskCache(DiskTileCache diskCache) {
+        mDiskCache = diskCache;
+    }
+
+    public DiskTileCache getDiskCache() {
+        return mDiskCache;
+    }
+
+    @Override
+    public Bitmap decodeTile(int level, int column, int row, Object request) throws IOException {
+        if (level < 0 || level >= mLevelCount || column < 0 || row < 0) {
+            return null;
+        }
+        final long span = (long) mTileSize << level;
+        if (column * span >= mWidth || row * span >= mHeight) {
+            return null;
+        }
+        final DiskTileCache diskCache = mDiskCache;
+        if (null != diskCache) {
+            byte[] cached = diskCache.get(level, column, row);
+            if (null != cached) {
+                Bitmap tile = BitmapFactory.decodeByteArray(cached, 0, cached.length);
+                if (null != tile) {
+                    return tile;
+                }
+            }
+        }
+
+        final Rect region = new Rect((int) (column * span), (int) (row * span),
+                (int) Math.min((column + 1) * span, mWidth),
+                (int) Math.min((row + 1) * span, mHeight));
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = 1 << level;
+
+        final BitmapRegionDecoder decoder = acquire();
+        final long start = System.nanoTime();
+        final Bitmap tile;
+        try {
+            tile = decoder.decodeRegion(region, options);
+        } finally {
+            release(decoder, start, System.nanoTime());
+        }
+        if (null != tile && null != diskCache) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            if (tile.hasAlpha()) {
+                tile.compress(Bitmap.CompressFormat.PNG, 100, out);
+            } else {
+                tile.compress(Bitmap.CompressFormat.JPEG, 90, out);
+            }
+            diskCache.put(level, column, row, out.toByteArray());
+        }
+        return tile;
+    }
+
+    @Override
+    public void cancelTile(int level, int column, int row, Object request) {
+        // a region decode can't be interrupted, queued tasks are dropped by the view
+    }
+
+    @Override
+    public void invalidateTile(int level, int column, int row) {
+        final DiskTileCache diskCache = mDiskCache;
+        if (null != diskCache) {
+            diskCache.remove(level, column, row);
+        }
+    }
+
+    /**
+     * Recycles the idle decoders, busy ones follow when their tile is done, and closes the disk
+     * cache.
+     */
+    @Override
+    public synchronized void close() {
+        mClosed = true;
+        for (BitmapRegionDecoder decoder : mIdle) {
+            decoder.recycle();
+        }
+        mIdle.clear();
+        notifyAll();
+        DiskTileCache diskCache = mDiskCache;
+        if (null != diskCache) {
+            diskCache.close();
+        }
+    }
+
+    /**
+     * @return decoders created so far, idle or busy
+     */
+    public synchronized int getDecoderCount() {
+        return mDecoderCount;
+    }
+
+    /**
+     * @return decode calls currently waiting for a decoder
+     */
+    public synchronized int getQueueDepth() {
+        return mQueueDepth;
+    }
+
+    public synchronized int getMaxQueueDepth() {
+        return mMaxQueueDepth;
+    }
+
+    public synchronized long getDecodedTileCount() {
+        return mDecodedTiles;
+    }
+
+    /**
+     * @return mean time a decoder spent on one tile, waiting for a decoder not included
+     */
+    public synchronized float getAverageDecodeMillis() {
+        return 0 == mDecodedTiles ? 0f : mDecodeNanos / 1e6f / mDecodedTiles;
+    }
+
+    /**
+     * @return tiles decoded per second of wall time, from the start of the first decode to the
+     * end of the last one
+     */
+    public synchronized float getThroughput() {
+        final long elapsed = mLastDecodeEnd - mFirstDecodeStart;
+        return elapsed <= 0 ? 0f : mDecodedTiles * 1e9f / elapsed;
+    }
+
+    public synchronized void resetStats() {
+        mMaxQueueDepth = mQueueDepth;
+        mDecodedTiles = mDecodeNanos = 0;
+        mFirstDecodeStart = mLastDecodeEnd = 0;
+    }
+
+    /**
+     * Takes an idle decoder, creates one while below the limit, or waits for one.
+     */
+    private BitmapRegionDecoder acquire() throws IOException {
+        synchronized (this) {
+            for (; ; ) {
+                if (mClosed) {
+                    throw new InterruptedIOException("Source closed");
+                }
+                if (!mIdle.isEmpty()) {
+                    return mIdle.remove(mIdle.size() - 1);
+                }
+                if (mDecoderCount < mMaxDecoders) {
+                    mDecoderCount++;
+                    break;
+                }
+                mQueueDepth++;
+                mMaxQueueDepth = Math.max(mMaxQueueDepth, mQueueDepth);
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted waiting for a decoder");
+                } finally {
+                    mQueueDepth--;
+                }
+            }
+        }
+
+        // creating parses the file header, don't hold up the threads with a decoder meanwhile
+        try {
+            return newDecoder();
+        } catch (IOException e) {
+            synchronized (this) {
+                mDecoderCount--;
+                notify();
+            }
+            throw e;
+        }
+    }
+
+    private synchronized void release(BitmapRegionDecoder decoder, long start, long end) {
+        if (0 == mDecodedTiles || start < mFirstDecodeStart) {
+            mFirstDecodeStart = start;
+        }
+        mDecodedTiles++;
+        mDecodeNanos += end - start;
+        mLastDecodeEnd = Math.max(mLastDecodeEnd, end);
+
+        if (mClosed) {
+            decoder.recycle();
+            return;
+        }
+        mIdle.add(decoder);
+        notify();
+    }
+
+    private BitmapRegionDecoder newDecoder() throws IOException {
+        final BitmapRegionDecoder decoder;
+        if (null != mPath) {
+            decoder = BitmapRegionDecoder.newInstance(mPath, false);
+        } else {
+            synchronized (mDescriptorLock) {
+                decoder = BitmapRegionDecoder.newInstance(mFileDescriptor, false);
+            }
+        }
+        if (null == decoder) {
+            throw new IOException("Unable to decode " + (null != mPath ? mPath : mFileDescriptor));
+        }
+        return decoder;
+    }
+
+}
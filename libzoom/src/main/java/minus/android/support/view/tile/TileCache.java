@@ -0,0 +1,113 @@
+package minus.android.support.view.tile;
+
+import android.graphics.Bitmap;
+import android.util.LruCache;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Size bounded LRU cache of decoded tiles, keyed by {@link #key(int, int, int)}. Evicted
+ * tiles are recycled, so only touch it from the main thread, where tiles are drawn.
+ */
+public class TileCache {
+
+    private final LruCache<Long, Bitmap> mTiles;
+
+    /**
+     * @param maxBytes upper bound for the byte count of all cached bitmaps
+     */
+    public TileCache(int maxBytes) {
+        mTiles = new LruCache<Long, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(Long key, Bitmap value) {
+                return value.getByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, Long key, Bitmap oldValue, Bitmap newValue) {
+                if (oldValue != newValue && !oldValue.isRecycled()) {
+                    oldValue.recycle();
+                }
+            }
+        };
+    }
+
+    /**
+     * Packs a tile position into a cache key: 8 bits of level, 28 bits each of column and row.
+     */
+    public static long key(int level, int column, int row) {
+        return ((long) level << 56) | ((long) (column & 0xfffffff) << 28) | (row & 0xfffffff);
+    }
+
+    public static int level(long key) {
+        return (int) (key >>> 56);
+    }
+
+    public static int column(long key) {
+        return (int) ((key >>> 28) & 0xfffffff);
+    }
+
+    public static int row(long key) {
+        return (int) (key & 0xfffffff);
+    }
+
+    public Bitmap get(long key) {
+        return mTiles.get(key);
+    }
+
+    public void put(long key, Bitmap tile) {
+        mTiles.put(key, tile);
+    }
+
+    public void remove(long key) {
+        mTiles.remove(key);
+    }
+
+    public void evictAll() {
+        mTiles.evictAll();
+    }
+
+    /**
+     * Evicts the least recently used tiles until at most maxBytes are held.
+     */
+    public void trimToSize(int maxBytes) {
+        trimToSize(maxBytes, Collections.<Long>emptySet());
+    }
+
+    /**
+     * Like {@link #trimToSize(int)}, but evicts the tiles in keep only if the others don't
+     * free enough.
+     */
+    public void trimToSize(int maxBytes, Set<Long> keep) {
+        // LruCache#trimToSize is API 17
+        final Map<Long, Bitmap> snapshot = mTiles.snapshot();
+        for (Long key : snapshot.keySet()) {
+            if (mTiles.size() <= maxBytes) {
+                return;
+            }
+            if (!keep.contains(key)) {
+                mTiles.remove(key);
+            }
+        }
+        for (Long key : snapshot.keySet()) {
+            if (mTiles.size() <= maxBytes) {
+                return;
+            }
+            mTiles.remove(key);
+        }
+    }
+
+    /**
+     * @return byte count of all cached tiles
+     */
+    public int size() {
+        return mTiles.size();
+    }
+
+    public int maxSize() {
+        return mTiles.maxSize();
+    }
+
+}
@@ -0,0 +1,168 @@
+package minus.android.support.view.tile;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads tiles from a container written by the tilegen tool. Header and index are memory-mapped
+ * once; tile data is read from a mapping of the whole file when it fits in one buffer (2 GB)
+ * and the address space has room for it, otherwise a window is mapped per tile.
+ * <p>
+ * Layout, all big-endian: a 32 byte header (magic, version, width, height, tile size, level
+ * count, format, reserved), 8 bytes per level (columns, rows), then 12 bytes per tile (long
+ * offset, int length) for level 0 first and row-major within a level, then the tile data.
+ */
+public class TileContainerSource implements TileSource {
+
+    static final int MAGIC = 0x5A565450; // "ZVTP"
+    static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 32;
+    private static final int LEVEL_ENTRY_SIZE = 8;
+    private static final int INDEX_ENTRY_SIZE = 12;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final MappedByteBuffer mIndex;
+    private final MappedByteBuffer mData;
+
+    private final int mWidth, mHeight, mTileSize, mLevelCount;
+    private final int[] mColumns, mRows;
+    private final int[] mFirstTile;
+
+    public TileContainerSource(File file) throws IOException {
+        mFile = new RandomAccessFile(file, "r");
+        try {
+            mChannel = mFile.getChannel();
+            final long length = mChannel.size();
+
+            ByteBuffer header = mChannel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(length, HEADER_SIZE));
+            if (header.limit() < HEADER_SIZE || header.getInt(0) != MAGIC) {
+                throw new IOException("Not a tile container: " + file);
+            }
+            if (header.getInt(4) != VERSION) {
+                throw new IOException("Unsupported tile container version " + header.getInt(4));
+            }
+            mWidth = header.getInt(8);
+            mHeight = header.getInt(12);
+            mTileSize = header.getInt(16);
+            mLevelCount = header.getInt(20);
+
+            ByteBuffer levels = mChannel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE,
+                    (long) LEVEL_ENTRY_SIZE * mLevelCount);
+            mColumns = new int[mLevelCount];
+            mRows = new int[mLevelCount];
+            mFirstTile = new int[mLevelCount + 1];
+            for (int level = 0; level < mLevelCount; level++) {
+                mColumns[level] = levels.getInt(level * LEVEL_ENTRY_SIZE);
+                mRows[level] = levels.getInt(level * LEVEL_ENTRY_SIZE + 4);
+                mFirstTile[level + 1] = mFirstTile[level] + mColumns[level] * mRows[level];
+            }
+
+            mIndex = mChannel.map(FileChannel.MapMode.READ_ONLY,
+                    HEADER_SIZE + (long) LEVEL_ENTRY_SIZE * mLevelCount,
+                    (long) INDEX_ENTRY_SIZE * mFirstTile[mLevelCount]);
+            mData = length <= Integer.MAX_VALUE ? mapWhole(length) : null;
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return a mapping of the whole file, or null if there is no room for it, which is common
+     * for a GB or more in a 32-bit process
+     */
+    private MappedByteBuffer mapWhole(long length) {
+        try {
+            return mChannel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public int getWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public int getTileSize() {
+        return mTileSize;
+    }
+
+    @Override
+    public int getLevelCount() {
+        return mLevelCount;
+    }
+
+    @Override
+    public Bitmap decodeTile(int level, int column, int row, Object request) throws IOException {
+        byte[] bytes = readTile(level, column, row);
+        if (null == bytes) {
+            return null;
+        }
+        return BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
+    }
+
+    /**
+     * @return the encoded tile, or null if there is none at that position
+     */
+    public byte[] readTile(int level, int column, int row) throws IOException {
+        if (level < 0 || level >= mLevelCount
+                || column < 0 || column >= mColumns[level] || row < 0 || row >= mRows[level]) {
+            return null;
+        }
+
+        final int entry = (mFirstTile[level] + row * mColumns[level] + column) * INDEX_ENTRY_SIZE;
+        final long offset = mIndex.getLong(entry);
+        final int length = mIndex.getInt(entry + 8);
+        if (length <= 0) {
+            return null;
+        }
+
+        final byte[] bytes = new byte[length];
+        final ByteBuffer window;
+        if (null != mData) {
+            // duplicate() keeps concurrent readers from sharing a position
+            window = mData.duplicate();
+            window.position((int) offset);
+        } else {
+            window = mChannel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        }
+        window.get(bytes);
+        return bytes;
+    }
+
+    @Override
+    public void cancelTile(int level, int column, int row, Object request) {
+        // reads are short, nothing worth aborting
+    }
+
+    @Override
+    public void invalidateTile(int level, int column, int row) {
+        // reads the container every time, nothing kept
+    }
+
+    @Override
+    public void close() {
+        try {
+            mFile.close();
+        } catch (IOException e) {
+            // ignore, nothing left to release
+        }
+    }
+
+}
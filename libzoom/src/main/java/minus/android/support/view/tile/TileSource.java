@@ -0,0 +1,48 @@
+package minus.android.support.view.tile;
+
+import android.graphics.Bitmap;
+
+import java.io.IOException;
+
+/**
+ * Supplies the tiles of an image pyramid to a {@link TiledZoomView}. Level 0 is full
+ * resolution, every further level halves both dimensions (rounding up). Tiles are
+ * {@link #getTileSize()} pixels square, except at the right and bottom edges.
+ */
+public interface TileSource {
+
+    int getWidth();
+
+    int getHeight();
+
+    int getTileSize();
+
+    int getLevelCount();
+
+    /**
+     * Called on a worker thread, possibly from several at once.
+     *
+     * @param request identifies this call to {@link #cancelTile}, any object unique to the caller
+     * @return the tile, or null if there is none at that position
+     */
+    Bitmap decodeTile(int level, int column, int row, Object request) throws IOException;
+
+    /**
+     * Hint that the {@link #decodeTile} call made with request is no longer needed, e.g.
+     * because its tile left the viewport. Other calls for the same tile are not affected.
+     * Sources doing slow I/O may abort the work; the pending call may then throw or return
+     * null. Called on the main thread.
+     */
+    void cancelTile(int level, int column, int row, Object request);
+
+    /**
+     * The content of the tile changed, see {@link TiledZoomView#invalidateSourceRect}. Sources
+     * keeping copies of tiles drop them, so that the next {@link #decodeTile} call returns the
+     * new content. Called on the main thread for every affected tile at every level, so it
+     * must not block on I/O.
+     */
+    void invalidateTile(int level, int column, int row);
+
+    void close();
+
+}
@@ -0,0 +1,521 @@
+package minus.android.support.view.tile;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.AttributeSet;
+import android.util.Log;
+import android.view.View;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import minus.android.support.view.MemoryReport;
+import minus.android.support.view.ZoomViewHelper;
+
+/**
+ * Zoomable view drawing an image pyramid from a {@link TileSource}. Only the tiles of the level
+ * matching the current draw scale that intersect the view are decoded, on background threads.
+ * Missing tiles are drawn from a cached coarser level until they arrive, and requests for tiles
+ * that are no longer visible are cancelled. Sources whose content changes in places can have
+ * just the affected tiles decoded again with {@link #invalidateSourceRect(Rect)}.
+ * <p>
+ * The view owns its source: it is closed when replaced and from {@link #release()}, which
+ * {@link ZoomViewHelper#cleanup()} calls.
+ */
+public class TiledZoomView extends View implements ZoomViewHelper.IZoomView, ZoomViewHelper.IReleasable,
+        ZoomViewHelper.IMemoryReporter {
+
+    private static final String LOG_TAG = "TiledZoomView";
+
+    public static final int DEFAULT_DECODE_THREADS =
+            Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+
+    private final Matrix mMatrix = new Matrix();
+    private final Matrix mInverse = new Matrix();
+    private final RectF mVisibleRect = new RectF();
+    private final RectF mTileRect = new RectF();
+    private final Rect mSrcRect = new Rect();
+    private final float[] mMatrixValues = new float[9];
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // main thread only
+    private final HashMap<Long, DecodeTask> mPending = new HashMap<Long, DecodeTask>();
+    private final HashSet<Long> mFailed = new HashSet<Long>();
+    private final HashSet<Long> mWanted = new HashSet<Long>();
+    // cached tiles with outdated content, drawn until their replacement arrives
+    private final HashSet<Long> mStale = new HashSet<Long>();
+    // content generation each invalidated tile was last invalidated in, kept until the source
+    // changes as a cancelled decode may still deliver old content much later
+    private final HashMap<Long, Integer> mInvalidatedIn = new HashMap<Long, Integer>();
+    private int mContentGeneration;
+
+    private ZoomViewHelper.ScaleType mScaleType = ZoomViewHelper.ScaleType.FIT_CENTER;
+    private TileSource mSource;
+    private TileCache mCache;
+    private ExecutorService mExecutor;
+    private int mDecodeThreads = DEFAULT_DECODE_THREADS;
+    private int mCacheBytes = (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 8);
+
+    public TiledZoomView(Context context) {
+        super(context);
+    }
+
+    public TiledZoomView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+    }
+
+    public TiledZoomView(Context context, AttributeSet attrs, int defStyleAttr) {
+        super(context, attrs, defStyleAttr);
+    }
+
+    /**
+     * Replaces the source, closing the previous one. Call {@link ZoomViewHelper#update()}
+     * afterwards so the base matrix matches the new size.
+     */
+    public void setTileSource(TileSource source) {
+        if (source == mSource) {
+            return;
+        }
+        if (null != mSource) {
+            for (DecodeTask task : mPending.values()) {
+                task.mFuture.cancel(false);
+            }
+            mSource.close();
+        }
+        mPending.clear();
+        mFailed.clear();
+        mStale.clear();
+        mInvalidatedIn.clear();
+        if (null != mCache) {
+            mCache.evictAll();
+        }
+        mSource = source;
+        invalidate();
+    }
+
+    public TileSource getTileSource() {
+        return mSource;
+    }
+
+    /**
+     * Number of threads decoding tiles. Takes effect for the next source or after
+     * {@link #release()}.
+     */
+    public void setDecodeThreads(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("threads must be positive");
+        mDecodeThreads = threads;
+    }
+
+    /**
+     * Upper bound for the bytes of decoded tiles kept in memory. Defaults to 1/8 of the heap.
+     */
+    public void setCacheSize(int maxBytes) {
+        mCacheBytes = maxBytes;
+        if (null != mCache) {
+            mCache.evictAll();
+            mCache = null;
+        }
+        mStale.clear();
+        invalidate();
+    }
+
+    /**
+     * Decodes the tiles covering rect, in source pixels, again at every level, after the source
+     * content changed there. The source is told through {@link TileSource#invalidateTile} and
+     * must return the new content from then on. Tiles on
+     * screen keep showing the old content until their replacement is decoded, other affected
+     * tiles are evicted. The transform and all other tiles are left alone.
+     */
+    public void invalidateSourceRect(Rect rect) {
+        final TileSource source = mSource;
+        if (null == source) {
+            return;
+        }
+        final int left = Math.max(0, rect.left);
+        final int top = Math.max(0, rect.top);
+        final int right = Math.min(source.getWidth(), rect.right);
+        final int bottom = Math.min(source.getHeight(), rect.bottom);
+        if (left >= right || top >= bottom) {
+            return;
+        }
+
+        mContentGeneration++;
+        for (int level = 0; level < source.getLevelCount(); level++) {
+            final int span = source.getTileSize() << level;
+            for (int row = top / span; row <= (bottom - 1) / span; row++) {
+                for (int column = left / span; column <= (right - 1) / span; column++) {
+                    invalidateTile(source, TileCache.key(level, column, row));
+                }
+            }
+        }
+        invalidate();
+    }
+
+    private void invalidateTile(TileSource source, long key) {
+        mFailed.remove(key);
+        // decodes already running, even cancelled ones, return the old content
+        mInvalidatedIn.put(key, mContentGeneration);
+        final DecodeTask task = mPending.remove(key);
+        if (null != task) {
+            task.mFuture.cancel(false);
+            source.cancelTile(TileCache.level(key), TileCache.column(key), TileCache.row(key), task);
+        }
+        // after the cancel, which has to find the running decode
+        source.invalidateTile(TileCache.level(key), TileCache.column(key), TileCache.row(key));
+        if (null != mCache && null != mCache.get(key)) {
+            if (mWanted.contains(key)) {
+                mStale.add(key);
+            } else {
+                mCache.remove(key);
+            }
+        }
+    }
+
+    @Override
+    public boolean hasDrawable() {
+        return null != mSource;
+    }
+
+    @Override
+    public ZoomViewHelper.ScaleType getScaleType() {
+        return mScaleType;
+    }
+
+    @Override
+    public void setScaleType(ZoomViewHelper.ScaleType scaleType) {
+        mScaleType = scaleType;
+    }
+
+    @Override
+    public void setImageMatrix(Matrix m) {
+        mMatrix.set(m);
+        invalidate();
+    }
+
+    @Override
+    public void getDisplayRect(RectF outRect) {
+        if (null == outRect) {
+            return;
+        }
+        outRect.set(0, 0, getIntrinsicWidth(), getIntrinsicHeight());
+    }
+
+    @Override
+    public int getIntrinsicWidth() {
+        return null == mSource ? 0 : mSource.getWidth();
+    }
+
+    @Override
+    public int getIntrinsicHeight() {
+        return null == mSource ? 0 : mSource.getHeight();
+    }
+
+    @Override
+    public void reportMemory(MemoryReport report) {
+        if (null != mCache) {
+            report.add(MemoryReport.CACHES, mCache.size());
+        }
+    }
+
+    /**
+     * Evicts the least recently used tiles, the ones drawn last only if that is not enough.
+     * Missing tiles are decoded again when drawn.
+     */
+    @Override
+    public void trimMemory(int category, long bytes) {
+        if (category == MemoryReport.CACHES && null != mCache) {
+            mCache.trimToSize((int) Math.min(Integer.MAX_VALUE, bytes), mWanted);
+            // evicted tiles are recycled, don't leave them in the last frame
+            invalidate();
+        }
+    }
+
+    /**
+     * Stops decoding, drops all cached tiles and closes the source.
+     */
+    @Override
+    public void release() {
+        if (null != mExecutor) {
+            mExecutor.shutdownNow();
+            mExecutor = null;
+        }
+        mPending.clear();
+        mFailed.clear();
+        mStale.clear();
+        mInvalidatedIn.clear();
+        if (null != mCache) {
+            mCache.evictAll();
+        }
+        if (null != mSource) {
+            mSource.close();
+            mSource = null;
+        }
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        final TileSource source = mSource;
+        if (null == source) {
+            return;
+        }
+        ensureWorkers();
+
+        mVisibleRect.set(0, 0, getWidth() - getPaddingLeft() - getPaddingRight(),
+                getHeight() - getPaddingTop() - getPaddingBottom());
+        if (!mMatrix.invert(mInverse)) {
+            return;
+        }
+        mInverse.mapRect(mVisibleRect);
+        if (!mVisibleRect.intersect(0, 0, source.getWidth(), source.getHeight())) {
+            return;
+        }
+
+        mWanted.clear();
+        final int saveCount = canvas.save();
+        canvas.translate(getPaddingLeft(), getPaddingTop());
+        canvas.concat(mMatrix);
+        drawLevel(canvas, source, levelForScale(getMatrixScale(), source.getLevelCount()));
+        canvas.restoreToCount(saveCount);
+        cancelUnwantedTiles(source);
+    }
+
+    private void drawLevel(Canvas canvas, TileSource source, int level) {
+        final int span = source.getTileSize() << level;
+        final int firstColumn = Math.max(0, (int) (mVisibleRect.left / span));
+        final int lastColumn = Math.min((source.getWidth() - 1) / span, (int) (mVisibleRect.right / span));
+        final int firstRow = Math.max(0, (int) (mVisibleRect.top / span));
+        final int lastRow = Math.min((source.getHeight() - 1) / span, (int) (mVisibleRect.bottom / span));
+
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                final long key = TileCache.key(level, column, row);
+                final Bitmap tile = mCache.get(key);
+                getTileRect(source, level, column, row, mTileRect);
+                if (null != tile) {
+                    canvas.drawBitmap(tile, null, mTileRect, mPaint);
+                    if (mStale.contains(key)) {
+                        requestTile(source, key);
+                    }
+                } else {
+                    requestTile(source, key);
+                    drawFallback(canvas, source, level, column, row);
+                }
+            }
+        }
+    }
+
+    /**
+     * Draws the part of the closest cached coarser tile that covers mTileRect.
+     */
+    private void drawFallback(Canvas canvas, TileSource source, int level, int column, int row) {
+        final int levelCount = source.getLevelCount();
+        for (int coarse = level + 1; coarse < levelCount; coarse++) {
+            final int shift = coarse - level;
+            final int coarseColumn = column >> shift;
+            final int coarseRow = row >> shift;
+            final Bitmap tile = mCache.get(TileCache.key(coarse, coarseColumn, coarseRow));
+            if (null == tile) {
+                if (coarse == levelCount - 1) {
+                    // the top level is cheap, get it so there is something to show
+                    requestTile(source, TileCache.key(coarse, coarseColumn, coarseRow));
+                }
+                continue;
+            }
+
+            final int coarseSpan = source.getTileSize() << coarse;
+            final float originX = coarseColumn * coarseSpan;
+            final float originY = coarseRow * coarseSpan;
+            final float factor = 1 << coarse;
+            mSrcRect.set((int) Math.floor((mTileRect.left - originX) / factor),
+                    (int) Math.floor((mTileRect.top - originY) / factor),
+                    Math.min(tile.getWidth(), (int) Math.ceil((mTileRect.right - originX) / factor)),
+                    Math.min(tile.getHeight(), (int) Math.ceil((mTileRect.bottom - originY) / factor)));
+            canvas.drawBitmap(tile, mSrcRect, mTileRect, mPaint);
+            return;
+        }
+    }
+
+    /**
+     * Source rectangle covered by a tile.
+     */
+    static void getTileRect(TileSource source, int level, int column, int row, RectF outRect) {
+        final int span = source.getTileSize() << level;
+        outRect.set(column * span, row * span,
+                Math.min((column + 1) * (long) span, source.getWidth()),
+                Math.min((row + 1) * (long) span, source.getHeight()));
+    }
+
+    static int levelForScale(float scale, int levelCount) {
+        if (scale <= 0f || scale >= 1f) {
+            return 0;
+        }
+        int level = (int) Math.floor(Math.log(1f / scale) / Math.log(2));
+        return Math.min(level, levelCount - 1);
+    }
+
+    private float getMatrixScale() {
+        mMatrix.getValues(mMatrixValues);
+        final float scaleX = mMatrixValues[Matrix.MSCALE_X];
+        final float skewY = mMatrixValues[Matrix.MSKEW_Y];
+        return (float) Math.sqrt(scaleX * scaleX + skewY * skewY);
+    }
+
+    private void ensureWorkers() {
+        if (null == mCache) {
+            mCache = new TileCache(mCacheBytes);
+        }
+        if (null == mExecutor) {
+            mExecutor = Executors.newFixedThreadPool(mDecodeThreads, new DecodeThreadFactory());
+        }
+    }
+
+    private void requestTile(TileSource source, long key) {
+        mWanted.add(key);
+        if (mPending.containsKey(key) || mFailed.contains(key)) {
+            return;
+        }
+        DecodeTask task = new DecodeTask(source, key, mContentGeneration);
+        mPending.put(key, task);
+        task.mFuture = mExecutor.submit(task);
+    }
+
+    /**
+     * Cancels the requests of tiles that were not asked for in the last frame. Queued ones are
+     * dropped, running ones are left to the source to abort.
+     */
+    private void cancelUnwantedTiles(TileSource source) {
+        Iterator<Map.Entry<Long, DecodeTask>> it = mPending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, DecodeTask> entry = it.next();
+            final long key = entry.getKey();
+            if (!mWanted.contains(key)) {
+                it.remove();
+                final DecodeTask task = entry.getValue();
+                task.mFuture.cancel(false);
+                source.cancelTile(TileCache.level(key), TileCache.column(key), TileCache.row(key), task);
+            }
+        }
+    }
+
+    private void onTileDecoded(DecodeTask task, Bitmap tile, boolean failed) {
+        if (task.mTaskSource != mSource || null == mCache) {
+            // stale result, the source changed or the view was released meanwhile
+            if (null != tile) {
+                tile.recycle();
+            }
+            return;
+        }
+        final Integer invalidatedIn = mInvalidatedIn.get(task.mKey);
+        if (null != invalidatedIn && task.mGeneration < invalidatedIn) {
+            // requested before the content changed
+            if (null != tile) {
+                tile.recycle();
+            }
+            return;
+        }
+
+        final boolean wasPending = mPending.get(task.mKey) == task;
+        if (wasPending) {
+            mPending.remove(task.mKey);
+        }
+        if (null != tile || failed) {
+            // replaced, or kept showing if the new content can't be decoded
+            mStale.remove(task.mKey);
+        }
+        if (null != tile) {
+            mCache.put(task.mKey, tile);
+            invalidate();
+        } else if (failed && wasPending) {
+            // don't retry it on every frame
+            mFailed.add(task.mKey);
+        } else if (!failed && mWanted.contains(task.mKey)) {
+            // aborted while still on screen, ask for it again
+            invalidate();
+        }
+    }
+
+    private class DecodeTask implements Runnable {
+
+        private final TileSource mTaskSource;
+        private final long mKey;
+        private final int mGeneration;
+        private Future<?> mFuture;
+
+        DecodeTask(TileSource source, long key, int generation) {
+            mTaskSource = source;
+            mKey = key;
+            mGeneration = generation;
+        }
+
+        @Override
+        public void run() {
+            Bitmap tile = null;
+            boolean failed = false;
+            try {
+                tile = mTaskSource.decodeTile(TileCache.level(mKey),
+                        TileCache.column(mKey), TileCache.row(mKey), this);
+                failed = null == tile;
+            } catch (InterruptedIOException e) {
+                // cancelled, it may be asked for again later
+            } catch (IOException e) {
+                failed = true;
+                Log.w(LOG_TAG, "Unable to decode tile " + TileCache.level(mKey) + "/"
+                        + TileCache.column(mKey) + "/" + TileCache.row(mKey), e);
+            } catch (RuntimeException e) {
+                // the Future would swallow it, leaving the tile pending for good
+                failed = true;
+                Log.w(LOG_TAG, "Unable to decode tile " + TileCache.level(mKey) + "/"
+                        + TileCache.column(mKey) + "/" + TileCache.row(mKey), e);
+            } catch (OutOfMemoryError e) {
+                failed = true;
+                Log.w(LOG_TAG, "Out of memory decoding tile " + TileCache.level(mKey) + "/"
+                        + TileCache.column(mKey) + "/" + TileCache.row(mKey), e);
+            }
+
+            final Bitmap result = tile;
+            final boolean resultFailed = failed;
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onTileDecoded(DecodeTask.this, result, resultFailed);
+                }
+            });
+        }
+    }
+
+    private static class DecodeThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, LOG_TAG + "-decode-" + mCount.incrementAndGet());
+        }
+    }
+
+}
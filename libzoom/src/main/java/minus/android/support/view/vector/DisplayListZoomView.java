@@ -0,0 +1,141 @@
+package minus.android.support.view.vector;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Picture;
+import android.graphics.RectF;
+import android.os.Build.VERSION;
+import android.os.Build.VERSION_CODES;
+import android.util.AttributeSet;
+import android.view.View;
+
+import minus.android.support.view.ZoomViewHelper;
+
+/**
+ * Base class for zoomable views with custom drawn content, e.g. charts. Subclasses draw their
+ * content once in {@link #onDrawContent(Canvas)}, in content coordinates and independent of the
+ * zoom. It is recorded into a {@link Picture} that every frame replays under the helper's
+ * matrix, so zooming and panning don't run the drawing code again. Call
+ * {@link #invalidateContent()} when the content itself changes.
+ * <p>
+ * Hardware accelerated canvases only draw pictures from API 23 on, below that the view uses a
+ * software layer.
+ */
+public abstract class DisplayListZoomView extends View implements ZoomViewHelper.IZoomView, ZoomViewHelper.IReleasable {
+
+    private final Matrix mMatrix = new Matrix();
+
+    private ZoomViewHelper.ScaleType mScaleType = ZoomViewHelper.ScaleType.FIT_CENTER;
+    private Picture mPicture;
+    private int mWidth, mHeight;
+
+    public DisplayListZoomView(Context context) {
+        super(context);
+        init();
+    }
+
+    public DisplayListZoomView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        init();
+    }
+
+    public DisplayListZoomView(Context context, AttributeSet attrs, int defStyleAttr) {
+        super(context, attrs, defStyleAttr);
+        init();
+    }
+
+    private void init() {
+        if (VERSION.SDK_INT < VERSION_CODES.M) {
+            setLayerType(LAYER_TYPE_SOFTWARE, null);
+        }
+    }
+
+    /**
+     * Draws the content on a width x height canvas, see {@link #setContentSize(int, int)}.
+     * Called again only after {@link #invalidateContent()}.
+     */
+    protected abstract void onDrawContent(Canvas canvas);
+
+    /**
+     * Sets the size of the content and records it again. Call {@link ZoomViewHelper#update()}
+     * afterwards so the base matrix matches the new size.
+     */
+    public void setContentSize(int width, int height) {
+        mWidth = Math.max(0, width);
+        mHeight = Math.max(0, height);
+        invalidateContent();
+    }
+
+    /**
+     * Drops the recorded content, it is recorded again on the next draw.
+     */
+    public void invalidateContent() {
+        mPicture = null;
+        invalidate();
+    }
+
+    @Override
+    public boolean hasDrawable() {
+        return mWidth > 0 && mHeight > 0;
+    }
+
+    @Override
+    public ZoomViewHelper.ScaleType getScaleType() {
+        return mScaleType;
+    }
+
+    @Override
+    public void setScaleType(ZoomViewHelper.ScaleType scaleType) {
+        mScaleType = scaleType;
+    }
+
+    @Override
+    public void setImageMatrix(Matrix m) {
+        // only the replay changes, the recording is kept
+        mMatrix.set(m);
+        invalidate();
+    }
+
+    @Override
+    public void getDisplayRect(RectF outRect) {
+        if (null == outRect) {
+            return;
+        }
+        outRect.set(0, 0, mWidth, mHeight);
+    }
+
+    @Override
+    public int getIntrinsicWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getIntrinsicHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public void release() {
+        mPicture = null;
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        if (!hasDrawable()) {
+            return;
+        }
+        if (null == mPicture) {
+            mPicture = new Picture();
+            onDrawContent(mPicture.beginRecording(mWidth, mHeight));
+            mPicture.endRecording();
+        }
+
+        final int saveCount = canvas.save();
+        canvas.translate(getPaddingLeft(), getPaddingTop());
+        canvas.concat(mMatrix);
+        canvas.drawPicture(mPicture);
+        canvas.restoreToCount(saveCount);
+    }
+
+}
@@ -0,0 +1,429 @@
+package minus.android.support.view.vector;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.Picture;
+import android.graphics.RectF;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.AttributeSet;
+import android.util.Log;
+import android.view.View;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import minus.android.support.view.MemoryReport;
+import minus.android.support.view.ZoomViewHelper;
+
+/**
+ * Zoomable view for vector content recorded in a {@link Picture}. Two rasters are drawn: a base
+ * one of the whole picture, at most {@link #BASE_MAX_SIZE} pixels on its long side, and a
+ * detail one of the visible region at the current zoom band. Bands are {@link #BAND_STEP}
+ * apart, so the detail raster is at most that much larger than the screen needs. When the
+ * scale enters another band, or the view moves past the rendered region, the detail raster is
+ * re-rendered on a background thread while the old one stays on screen until it is swapped.
+ * While the transform is moving the rasters are drawn unfiltered and no new detail raster is
+ * rendered; that waits until the transform settled.
+ */
+public class VectorZoomView extends View implements ZoomViewHelper.IZoomView, ZoomViewHelper.IReleasable,
+        ZoomViewHelper.QualityPolicy, ZoomViewHelper.IMemoryReporter {
+
+    private static final String LOG_TAG = "VectorZoomView";
+
+    public static final int BASE_MAX_SIZE = 1024;
+    public static final float BAND_STEP = (float) Math.sqrt(2);
+    /**
+     * Part of the visible size rendered beyond each edge, so small pans don't re-render.
+     */
+    private static final float MARGIN = 0.125f;
+
+    private final Matrix mMatrix = new Matrix();
+    private final Matrix mInverse = new Matrix();
+    private final RectF mVisibleRect = new RectF();
+    private final float[] mMatrixValues = new float[9];
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final AtomicInteger mGeneration = new AtomicInteger();
+
+    private ZoomViewHelper.ScaleType mScaleType = ZoomViewHelper.ScaleType.FIT_CENTER;
+    private Picture mPicture;
+    private int mWidth, mHeight;
+    private ExecutorService mExecutor;
+
+    // main thread only
+    private Raster mBase, mDetail;
+    private boolean mBaseRequested;
+    private boolean mTransforming;
+    // the detail raster was trimmed, don't render it again until the transform changes
+    private boolean mDetailTrimmed;
+    private float mRequestedScale;
+    private final RectF mRequestedRect = new RectF();
+
+    public VectorZoomView(Context context) {
+        super(context);
+    }
+
+    public VectorZoomView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+    }
+
+    public VectorZoomView(Context context, AttributeSet attrs, int defStyleAttr) {
+        super(context, attrs, defStyleAttr);
+    }
+
+    /**
+     * Shows picture, which must not be changed afterwards. Call {@link ZoomViewHelper#update()}
+     * afterwards so the base matrix matches the new size.
+     */
+    public void setPicture(Picture picture) {
+        mGeneration.incrementAndGet();
+        recycle();
+        mPicture = picture;
+        mWidth = null == picture ? 0 : picture.getWidth();
+        mHeight = null == picture ? 0 : picture.getHeight();
+        invalidate();
+    }
+
+    /**
+     * Shows path drawn with paint on a width x height canvas.
+     */
+    public void setPath(Path path, Paint paint, int width, int height) {
+        Picture picture = new Picture();
+        Canvas canvas = picture.beginRecording(width, height);
+        canvas.drawPath(path, paint);
+        picture.endRecording();
+        setPicture(picture);
+    }
+
+    public Picture getPicture() {
+        return mPicture;
+    }
+
+    @Override
+    public boolean hasDrawable() {
+        return null != mPicture;
+    }
+
+    @Override
+    public ZoomViewHelper.ScaleType getScaleType() {
+        return mScaleType;
+    }
+
+    @Override
+    public void setScaleType(ZoomViewHelper.ScaleType scaleType) {
+        mScaleType = scaleType;
+    }
+
+    @Override
+    public void setImageMatrix(Matrix m) {
+        if (!mMatrix.equals(m)) {
+            mDetailTrimmed = false;
+        }
+        mMatrix.set(m);
+        invalidate();
+    }
+
+    @Override
+    public void getDisplayRect(RectF outRect) {
+        if (null == outRect) {
+            return;
+        }
+        outRect.set(0, 0, mWidth, mHeight);
+    }
+
+    @Override
+    public int getIntrinsicWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getIntrinsicHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public void onTransformStarted() {
+        mTransforming = true;
+        mPaint.setFilterBitmap(false);
+    }
+
+    @Override
+    public void onTransformSettled() {
+        mTransforming = false;
+        mPaint.setFilterBitmap(true);
+        invalidate();
+    }
+
+    /**
+     * The base raster counts as bitmap, the detail raster as cache since it is rendered again
+     * when needed.
+     */
+    @Override
+    public void reportMemory(MemoryReport report) {
+        if (null != mBase) {
+            report.add(MemoryReport.BITMAPS, mBase.bitmap.getByteCount());
+        }
+        if (null != mDetail) {
+            report.add(MemoryReport.CACHES, mDetail.bitmap.getByteCount());
+        }
+    }
+
+    /**
+     * Drops the detail raster, which is not rendered again until the transform changes.
+     */
+    @Override
+    public void trimMemory(int category, long bytes) {
+        if (category == MemoryReport.CACHES && null != mDetail && bytes < mDetail.bitmap.getByteCount()) {
+            mDetail.bitmap.recycle();
+            mDetail = null;
+            mDetailTrimmed = true;
+            if (mRequestedScale != 0) {
+                // a detail raster in flight would take the memory right back
+                mGeneration.incrementAndGet();
+                mRequestedScale = 0;
+            }
+            invalidate();
+        }
+    }
+
+    /**
+     * Stops rendering and drops the rasters.
+     */
+    @Override
+    public void release() {
+        mGeneration.incrementAndGet();
+        if (null != mExecutor) {
+            mExecutor.shutdownNow();
+            mExecutor = null;
+        }
+        recycle();
+        mPicture = null;
+        mWidth = mHeight = 0;
+    }
+
+    private void recycle() {
+        if (null != mBase) {
+            mBase.bitmap.recycle();
+            mBase = null;
+        }
+        if (null != mDetail) {
+            mDetail.bitmap.recycle();
+            mDetail = null;
+        }
+        mBaseRequested = false;
+        mRequestedScale = 0;
+        mDetailTrimmed = false;
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        if (null == mPicture || mWidth <= 0 || mHeight <= 0) {
+            return;
+        }
+        if (null == mExecutor) {
+            mExecutor = Executors.newSingleThreadExecutor(new RasterThreadFactory());
+        }
+
+        if (!mBaseRequested) {
+            mBaseRequested = true;
+            mVisibleRect.set(0, 0, mWidth, mHeight);
+            mExecutor.execute(new RasterTask(mPicture, mVisibleRect,
+                    (float) BASE_MAX_SIZE / Math.max(mWidth, mHeight), true, mGeneration.get()));
+        }
+        // before drawing, it may drop a detail raster that is no longer needed
+        requestDetailIfNeeded();
+
+        final int saveCount = canvas.save();
+        canvas.translate(getPaddingLeft(), getPaddingTop());
+        canvas.concat(mMatrix);
+        if (null != mBase) {
+            canvas.drawBitmap(mBase.bitmap, null, mBase.rect, mPaint);
+        }
+        if (null != mDetail) {
+            canvas.drawBitmap(mDetail.bitmap, null, mDetail.rect, mPaint);
+        }
+        canvas.restoreToCount(saveCount);
+    }
+
+    private void requestDetailIfNeeded() {
+        mVisibleRect.set(0, 0, getWidth() - getPaddingLeft() - getPaddingRight(),
+                getHeight() - getPaddingTop() - getPaddingBottom());
+        if (!mMatrix.invert(mInverse)) {
+            return;
+        }
+        mInverse.mapRect(mVisibleRect);
+        if (!mVisibleRect.intersect(0, 0, mWidth, mHeight)) {
+            return;
+        }
+
+        final float scale = bandScale(getMatrixScale());
+        if (null == mBase || scale <= mBase.scale) {
+            // the base raster is sharp enough, anything pending is obsolete
+            if (mRequestedScale != 0) {
+                mGeneration.incrementAndGet();
+                mRequestedScale = 0;
+            }
+            if (null != mBase && null != mDetail) {
+                mDetail.bitmap.recycle();
+                mDetail = null;
+            }
+            return;
+        }
+        if (null != mDetail && mDetail.scale == scale && mDetail.rect.contains(mVisibleRect)) {
+            return;
+        }
+        if (mTransforming) {
+            // the band may change again before it is done, ask once settled
+            return;
+        }
+        if (mDetailTrimmed) {
+            // the base raster has to do until the transform changes
+            return;
+        }
+        if (mRequestedScale == scale && mRequestedRect.contains(mVisibleRect)) {
+            return;
+        }
+
+        final float marginX = mVisibleRect.width() * MARGIN;
+        final float marginY = mVisibleRect.height() * MARGIN;
+        mRequestedRect.set(mVisibleRect);
+        mRequestedRect.inset(-marginX, -marginY);
+        mRequestedRect.intersect(0, 0, mWidth, mHeight);
+        mRequestedScale = scale;
+        // superseded requests still queued skip rendering
+        mExecutor.execute(new RasterTask(mPicture, mRequestedRect, scale, false, mGeneration.incrementAndGet()));
+    }
+
+    /**
+     * @return the raster scale of the band containing drawScale, the smallest power of
+     * {@link #BAND_STEP} not below it
+     */
+    static float bandScale(float drawScale) {
+        if (drawScale <= 0f) {
+            return 0f;
+        }
+        final int band = (int) Math.ceil(Math.log(drawScale) / Math.log(BAND_STEP) - 1e-4);
+        return (float) Math.pow(BAND_STEP, band);
+    }
+
+    private float getMatrixScale() {
+        mMatrix.getValues(mMatrixValues);
+        final float scaleX = mMatrixValues[Matrix.MSCALE_X];
+        final float skewY = mMatrixValues[Matrix.MSKEW_Y];
+        return (float) Math.sqrt(scaleX * scaleX + skewY * skewY);
+    }
+
+    private void onRasterized(RasterTask task, Bitmap bitmap) {
+        if (task.mTaskPicture != mPicture
+                || (!task.mBase && task.mTaskGeneration != mGeneration.get())) {
+            // stale, the content changed or a newer band was asked for meanwhile
+            if (null != bitmap) {
+                bitmap.recycle();
+            }
+            return;
+        }
+        if (null == bitmap) {
+            // out of memory, let the next draw ask again
+            if (task.mBase) {
+                mBaseRequested = false;
+            } else {
+                mRequestedScale = 0;
+            }
+            return;
+        }
+
+        final Raster raster = new Raster(bitmap, task.mRect, task.mScale);
+        if (task.mBase) {
+            if (null != mBase) {
+                mBase.bitmap.recycle();
+            }
+            mBase = raster;
+        } else {
+            if (null != mDetail) {
+                mDetail.bitmap.recycle();
+            }
+            mDetail = raster;
+            mRequestedScale = 0;
+        }
+        invalidate();
+    }
+
+    private static class Raster {
+        final Bitmap bitmap;
+        final RectF rect;
+        final float scale;
+
+        Raster(Bitmap bitmap, RectF rect, float scale) {
+            this.bitmap = bitmap;
+            this.rect = rect;
+            this.scale = scale;
+        }
+    }
+
+    private class RasterTask implements Runnable {
+
+        private final Picture mTaskPicture;
+        private final RectF mRect;
+        private final float mScale;
+        private final boolean mBase;
+        private final int mTaskGeneration;
+
+        RasterTask(Picture picture, RectF rect, float scale, boolean base, int generation) {
+            mTaskPicture = picture;
+            mRect = new RectF(rect);
+            mScale = scale;
+            mBase = base;
+            mTaskGeneration = generation;
+        }
+
+        @Override
+        public void run() {
+            Bitmap bitmap = null;
+            if (mBase || mTaskGeneration == mGeneration.get()) {
+                final int width = Math.max(1, (int) Math.ceil(mRect.width() * mScale));
+                final int height = Math.max(1, (int) Math.ceil(mRect.height() * mScale));
+                try {
+                    bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+                    Canvas canvas = new Canvas(bitmap);
+                    canvas.scale((float) width / mRect.width(), (float) height / mRect.height());
+                    canvas.translate(-mRect.left, -mRect.top);
+                    mTaskPicture.draw(canvas);
+                } catch (OutOfMemoryError e) {
+                    Log.w(LOG_TAG, "Unable to rasterize " + width + "x" + height, e);
+                    bitmap = null;
+                }
+            }
+
+            final Bitmap result = bitmap;
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onRasterized(RasterTask.this, result);
+                }
+            });
+        }
+    }
+
+    private static class RasterThreadFactory implements ThreadFactory {
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, LOG_TAG + "-raster");
+        }
+    }
+
+}
@@ -0,0 +1,256 @@
+package minus.android.support.view.widget;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import android.util.AttributeSet;
+import android.view.MotionEvent;
+import android.view.View;
+import android.view.ViewParent;
+
+import minus.android.support.view.Compat;
+import minus.android.support.view.ZoomViewHelper;
+
+/**
+ * Minimap of a zoomable image. A low resolution copy of the image, e.g. the top level of a
+ * {@link minus.android.support.view.bitmap.MipmapPyramid}, is scaled into the view once; after
+ * that a transform change only moves the rectangle marking the visible part, at most once per
+ * frame. Tapping or dragging on the overview centers the zoomed image on that point.
+ */
+public class OverviewView extends View implements ZoomViewHelper.OnMatrixChangedListener {
+
+    private final Matrix mSourceToOverview = new Matrix();
+    private final Matrix mOverviewToSource = new Matrix();
+    private final Matrix mInverse = new Matrix();
+    private final Matrix mSuppMatrix = new Matrix();
+    private final RectF mViewportRect = new RectF();
+    private final float[] mPoint = new float[2];
+    private final Paint mBitmapPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Paint mViewportPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+    private ZoomViewHelper mHelper;
+    private Bitmap mImage;
+    private Bitmap mCached;
+    private int mSourceWidth, mSourceHeight;
+    private boolean mHasLayout;
+    private boolean mUpdateScheduled;
+
+    private final Runnable mUpdateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mUpdateScheduled = false;
+            updateViewportRect();
+        }
+    };
+
+    public OverviewView(Context context) {
+        super(context);
+        init(context);
+    }
+
+    public OverviewView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        init(context);
+    }
+
+    public OverviewView(Context context, AttributeSet attrs, int defStyleAttr) {
+        super(context, attrs, defStyleAttr);
+        init(context);
+    }
+
+    private void init(Context context) {
+        mViewportPaint.setStyle(Paint.Style.STROKE);
+        mViewportPaint.setColor(Color.WHITE);
+        mViewportPaint.setStrokeWidth(2 * context.getResources().getDisplayMetrics().density);
+    }
+
+    /**
+     * Follows the transform of helper, pass null to detach.
+     */
+    public void setZoomViewHelper(ZoomViewHelper helper) {
+        if (null != mHelper) {
+            mHelper.removeOnMatrixChangeListener(this);
+        }
+        mHelper = helper;
+        if (null != helper) {
+            helper.addOnMatrixChangeListener(this);
+        }
+        updateLayout();
+    }
+
+    public ZoomViewHelper getZoomViewHelper() {
+        return mHelper;
+    }
+
+    /**
+     * @param image low resolution copy of the zoomed image, any size with the same aspect ratio
+     */
+    public void setOverviewBitmap(Bitmap image) {
+        mImage = image;
+        updateLayout();
+    }
+
+    public void setViewportColor(int color) {
+        mViewportPaint.setColor(color);
+        invalidate();
+    }
+
+    public void setViewportStrokeWidth(float width) {
+        mViewportPaint.setStrokeWidth(width);
+        invalidate();
+    }
+
+    @Override
+    public void onMatrixChanged(RectF rect) {
+        if (!mUpdateScheduled) {
+            mUpdateScheduled = true;
+            Compat.postOnAnimation(this, mUpdateRunnable);
+        }
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        updateLayout();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        removeCallbacks(mUpdateRunnable);
+        mUpdateScheduled = false;
+        super.onDetachedFromWindow();
+    }
+
+    /**
+     * Fits the source into the view and renders the cached copy at that size.
+     */
+    private void updateLayout() {
+        final ZoomViewHelper.IZoomView zoomView = null == mHelper ? null : mHelper.asInterface();
+        mSourceWidth = null == zoomView ? 0 : zoomView.getIntrinsicWidth();
+        mSourceHeight = null == zoomView ? 0 : zoomView.getIntrinsicHeight();
+        if ((mSourceWidth <= 0 || mSourceHeight <= 0) && null != mImage) {
+            mSourceWidth = mImage.getWidth();
+            mSourceHeight = mImage.getHeight();
+        }
+
+        final int width = getWidth() - getPaddingLeft() - getPaddingRight();
+        final int height = getHeight() - getPaddingTop() - getPaddingBottom();
+        if (null != mCached) {
+            mCached.recycle();
+            mCached = null;
+        }
+        mHasLayout = false;
+        if (width <= 0 || height <= 0 || mSourceWidth <= 0 || mSourceHeight <= 0) {
+            mViewportRect.setEmpty();
+            invalidate();
+            return;
+        }
+
+        final float scale = Math.min((float) width / mSourceWidth, (float) height / mSourceHeight);
+        final float fitWidth = mSourceWidth * scale;
+        final float fitHeight = mSourceHeight * scale;
+        mSourceToOverview.setScale(scale, scale);
+        mSourceToOverview.postTranslate(getPaddingLeft() + (width - fitWidth) / 2,
+                getPaddingTop() + (height - fitHeight) / 2);
+        mSourceToOverview.invert(mOverviewToSource);
+        mHasLayout = true;
+
+        if (null != mImage && !mImage.isRecycled()) {
+            final int cachedWidth = Math.max(1, Math.round(fitWidth));
+            final int cachedHeight = Math.max(1, Math.round(fitHeight));
+            mCached = Bitmap.createBitmap(cachedWidth, cachedHeight, Bitmap.Config.ARGB_8888);
+            Canvas canvas = new Canvas(mCached);
+            canvas.scale((float) cachedWidth / mImage.getWidth(), (float) cachedHeight / mImage.getHeight());
+            canvas.drawBitmap(mImage, 0, 0, mBitmapPaint);
+        }
+        updateViewportRect();
+    }
+
+    private void updateViewportRect() {
+        final View zoomView = null == mHelper ? null : mHelper.getView();
+        if (null == zoomView || !mHasLayout
+                || !mHelper.getDrawMatrix().invert(mInverse)) {
+            mViewportRect.setEmpty();
+        } else {
+            mViewportRect.set(0, 0,
+                    zoomView.getWidth() - zoomView.getPaddingLeft() - zoomView.getPaddingRight(),
+                    zoomView.getHeight() - zoomView.getPaddingTop() - zoomView.getPaddingBottom());
+            mInverse.mapRect(mViewportRect);
+            if (mViewportRect.intersect(0, 0, mSourceWidth, mSourceHeight)) {
+                mSourceToOverview.mapRect(mViewportRect);
+            } else {
+                mViewportRect.setEmpty();
+            }
+        }
+        invalidate();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        if (null != mCached) {
+            mPoint[0] = 0;
+            mPoint[1] = 0;
+            mSourceToOverview.mapPoints(mPoint);
+            canvas.drawBitmap(mCached, mPoint[0], mPoint[1], null);
+        }
+        if (!mViewportRect.isEmpty()) {
+            canvas.drawRect(mViewportRect, mViewportPaint);
+        }
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        if (null == mHelper || !mHasLayout) {
+            return super.onTouchEvent(event);
+        }
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+                ViewParent parent = getParent();
+                if (null != parent) {
+                    parent.requestDisallowInterceptTouchEvent(true);
+                }
+                // fall through
+            case MotionEvent.ACTION_MOVE:
+                centerOn(event.getX(), event.getY());
+                return true;
+            case MotionEvent.ACTION_UP:
+                performClick();
+                return true;
+            case MotionEvent.ACTION_CANCEL:
+                return true;
+        }
+        return super.onTouchEvent(event);
+    }
+
+    @Override
+    public boolean performClick() {
+        return super.performClick();
+    }
+
+    /**
+     * Moves the zoomed image so the source point under (x, y) of the overview is centered.
+     */
+    private void centerOn(float x, float y) {
+        final View zoomView = mHelper.getView();
+        if (null == zoomView) {
+            return;
+        }
+        mPoint[0] = x;
+        mPoint[1] = y;
+        mOverviewToSource.mapPoints(mPoint);
+        mPoint[0] = Math.max(0, Math.min(mSourceWidth, mPoint[0]));
+        mPoint[1] = Math.max(0, Math.min(mSourceHeight, mPoint[1]));
+        mHelper.getDrawMatrix().mapPoints(mPoint);
+
+        final float centerX = (zoomView.getWidth() - zoomView.getPaddingLeft() - zoomView.getPaddingRight()) / 2f;
+        final float centerY = (zoomView.getHeight() - zoomView.getPaddingTop() - zoomView.getPaddingBottom()) / 2f;
+        mHelper.getSuppMatrix(mSuppMatrix);
+        mSuppMatrix.postTranslate(centerX - mPoint[0], centerY - mPoint[1]);
+        mHelper.setDisplayMatrix(mSuppMatrix);
+    }
+
+}
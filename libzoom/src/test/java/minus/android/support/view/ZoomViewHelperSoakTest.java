@@ -0,0 +1,219 @@
+package minus.android.support.view;
+
+import android.app.Activity;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.RectF;
+import android.os.SystemClock;
+import android.view.MotionEvent;
+import android.view.View;
+import android.view.accessibility.AccessibilityManager;
+import android.widget.FrameLayout;
+import android.widget.ImageView;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+import org.robolectric.annotation.Resetter;
+import org.robolectric.shadows.ShadowAccessibilityManager;
+import org.robolectric.shadows.ShadowLog;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import minus.android.support.view.adapter.ImageZoomableAdapter;
+
+import static org.junit.Assert.*;
+
+/**
+ * Creates, gestures and cleans up thousands of helpers, leaving animations, flings and queued
+ * requests pending at random points, and checks that nothing keeps them alive afterwards.
+ */
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23,
+        shadows = ZoomViewHelperSoakTest.ShadowSingleAccessibilityManager.class)
+public class ZoomViewHelperSoakTest {
+
+    private static final int HELPERS = 2000;
+    private static final int WARM_UP = 200;
+    /**
+     * Below the few KB a leaked helper and its view would retain. Known to stay behind per
+     * helper: the test's weak references, and about 300 bytes of sync barriers that
+     * ViewRootImpl leaves in Robolectric's main message queue.
+     */
+    private static final long HEAP_GROWTH_PER_HELPER = 1024;
+    /**
+     * Longer than the tap, double tap and long press timeouts of the framework's GestureDetector,
+     * whose messages hold its listener until they fire.
+     */
+    private static final long FRAMEWORK_TIMEOUTS = 1000;
+
+    private final Random random = new Random(42);
+    private FrameLayout container;
+    private Bitmap bitmap;
+
+    @Before
+    public void setUp() {
+        Activity activity = Robolectric.setupActivity(Activity.class);
+        container = new FrameLayout(activity);
+        activity.setContentView(container);
+        bitmap = Bitmap.createBitmap(400, 300, Bitmap.Config.ARGB_8888);
+    }
+
+    @Test
+    public void helpersAreNotRetainedAfterCleanup() {
+        List<WeakReference<Object>> cleanedUp = new ArrayList<WeakReference<Object>>();
+        long baseline = 0;
+        for (int i = 0; i < HELPERS; i++) {
+            if (i == WARM_UP) {
+                baseline = retainedHeap();
+            }
+            runHelper(cleanedUp);
+        }
+
+        final long growth = retainedHeap() - baseline;
+
+        int reachable = 0;
+        for (WeakReference<Object> ref : cleanedUp) {
+            if (null != ref.get()) {
+                reachable++;
+            }
+        }
+        assertEquals("helpers and views reachable after cleanup()", 0, reachable);
+        assertTrue("retained heap grew by " + growth + " bytes",
+                growth < HEAP_GROWTH_PER_HELPER * (HELPERS - WARM_UP));
+    }
+
+    /**
+     * Robolectric's shadow creates an AccessibilityManager, and a service registering content
+     * observers with the application, on every lookup; views look it up on every click. The
+     * framework keeps a single instance.
+     */
+    @Implements(AccessibilityManager.class)
+    public static class ShadowSingleAccessibilityManager extends ShadowAccessibilityManager {
+
+        private static AccessibilityManager sInstance;
+
+        @Implementation
+        public static AccessibilityManager getInstance(Context context) throws Exception {
+            if (null == sInstance) {
+                sInstance = ShadowAccessibilityManager.getInstance(context);
+            }
+            return sInstance;
+        }
+
+        @Resetter
+        public static void reset() {
+            sInstance = null;
+        }
+    }
+
+    private void runHelper(List<WeakReference<Object>> cleanedUp) {
+        ImageView view = new ImageView(container.getContext());
+        view.setImageBitmap(bitmap);
+        container.addView(view, new FrameLayout.LayoutParams(200 + random.nextInt(200), 200 + random.nextInt(200)));
+        container.measure(View.MeasureSpec.makeMeasureSpec(800, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(800, View.MeasureSpec.EXACTLY));
+        container.layout(0, 0, 800, 800);
+
+        // the helper only holds the adapter weakly
+        ImageZoomableAdapter adapter = new ImageZoomableAdapter(view);
+        ZoomViewHelper helper = new ZoomViewHelper(view, adapter, true, random.nextBoolean());
+        helper.update();
+
+        final int gestures = 1 + random.nextInt(4);
+        for (int i = 0; i < gestures; i++) {
+            gesture(view, helper);
+            // leaves whatever is running half done
+            ShadowLooper.idleMainLooper(random.nextInt(50));
+        }
+
+        helper.cleanup();
+        container.removeView(view);
+        ShadowLooper.idleMainLooper(FRAMEWORK_TIMEOUTS);
+        // Robolectric keeps every log line, e.g. from the disposed input event receivers
+        ShadowLog.reset();
+
+        cleanedUp.add(new WeakReference<Object>(helper));
+        cleanedUp.add(new WeakReference<Object>(view));
+    }
+
+    private void gesture(ImageView view, ZoomViewHelper helper) {
+        final float x = random.nextFloat() * view.getWidth();
+        final float y = random.nextFloat() * view.getHeight();
+        switch (random.nextInt(6)) {
+            case 0:
+                drag(view, x, y);
+                break;
+            case 1:
+                tap(view, x, y);
+                tap(view, x, y);
+                break;
+            case 2:
+                helper.setScale(1f + 2f * random.nextFloat(), x, y, true);
+                break;
+            case 3:
+                helper.zoomToRect(new RectF(x, y, x + 50, y + 50), 100 + random.nextInt(300));
+                break;
+            case 4:
+                helper.beginTransaction()
+                        .scale(1f + random.nextFloat(), x, y)
+                        .rotate(random.nextInt(360), x, y)
+                        .animate(100 + random.nextInt(300))
+                        .commit();
+                break;
+            default:
+                helper.requestScale(1f + 2f * random.nextFloat(), random.nextBoolean());
+                break;
+        }
+    }
+
+    private void drag(View view, float x, float y) {
+        final long downTime = SystemClock.uptimeMillis();
+        dispatch(view, downTime, downTime, MotionEvent.ACTION_DOWN, x, y);
+        final int moves = 2 + random.nextInt(10);
+        for (int i = 1; i <= moves; i++) {
+            x += random.nextInt(81) - 40;
+            y += random.nextInt(81) - 40;
+            dispatch(view, downTime, downTime + i * 10, MotionEvent.ACTION_MOVE, x, y);
+        }
+        dispatch(view, downTime, downTime + moves * 10 + 10, MotionEvent.ACTION_UP, x, y);
+    }
+
+    private void tap(View view, float x, float y) {
+        final long downTime = SystemClock.uptimeMillis();
+        dispatch(view, downTime, downTime, MotionEvent.ACTION_DOWN, x, y);
+        dispatch(view, downTime, downTime + 20, MotionEvent.ACTION_UP, x, y);
+        ShadowLooper.idleMainLooper(40);
+    }
+
+    private static void dispatch(View view, long downTime, long eventTime, int action, float x, float y) {
+        MotionEvent event = MotionEvent.obtain(downTime, eventTime, action, x, y, 0);
+        view.dispatchTouchEvent(event);
+        event.recycle();
+    }
+
+    /**
+     * @return heap in use after collecting everything unreachable
+     */
+    private static long retainedHeap() {
+        for (int i = 0; i < 3; i++) {
+            WeakReference<Object> sentinel = new WeakReference<Object>(new Object());
+            while (null != sentinel.get()) {
+                System.gc();
+                System.runFinalization();
+            }
+        }
+        final Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+}
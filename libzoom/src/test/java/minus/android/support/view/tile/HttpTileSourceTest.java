@@ -0,0 +1,339 @@
+package minus.android.support.view.tile;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs {@link HttpTileSource} against an embedded HTTP server standing in for a tile server.
+ */
+public class HttpTileSourceTest {
+
+    private HttpServer server;
+    private ExecutorService clients;
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger maxRunning = new AtomicInteger();
+    private final CountDownLatch unblock = new CountDownLatch(1);
+    private volatile boolean block;
+    private volatile long delay;
+    private File cacheDir;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/tiles/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                int now = running.incrementAndGet();
+                while (true) {
+                    int max = maxRunning.get();
+                    if (now <= max || maxRunning.compareAndSet(max, now)) {
+                        break;
+                    }
+                }
+                try {
+                    if (block) {
+                        unblock.await(10, TimeUnit.SECONDS);
+                    }
+                    if (delay > 0) {
+                        Thread.sleep(delay);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    running.decrementAndGet();
+                }
+
+                String path = exchange.getRequestURI().getPath();
+                if (path.contains("missing")) {
+                    exchange.sendResponseHeaders(404, -1);
+                    exchange.close();
+                    return;
+                }
+                byte[] body = path.getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.start();
+        clients = Executors.newCachedThreadPool();
+        cacheDir = new File(System.getProperty("java.io.tmpdir"), "tiles-" + System.nanoTime());
+    }
+
+    @After
+    public void tearDown() {
+        unblock.countDown();
+        clients.shutdownNow();
+        server.stop(0);
+        File[] files = cacheDir.listFiles();
+        if (null != files) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        cacheDir.delete();
+    }
+
+    private HttpTileSource newSource() {
+        return new HttpTileSource("http://127.0.0.1:" + server.getAddress().getPort()
+                + "/tiles/{level}/{x}_{y}", 4096, 4096, 256, 5);
+    }
+
+    private Future<byte[]> fetchAsync(HttpTileSource source, int level, int x, int y) {
+        return fetchAsync(source, level, x, y, new Object());
+    }
+
+    private Future<byte[]> fetchAsync(final HttpTileSource source, final int level, final int x, final int y,
+                                      final Object request) {
+        return clients.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                return source.fetchTile(level, x, y, request);
+            }
+        });
+    }
+
+    @Test
+    public void concurrentRequestsForOneTileShareOneDownload() throws Exception {
+        HttpTileSource source = newSource();
+        block = true;
+
+        List<Future<byte[]>> results = new ArrayList<Future<byte[]>>();
+        for (int i = 0; i < 5; i++) {
+            results.add(fetchAsync(source, 1, 2, 3));
+        }
+        Thread.sleep(300);
+        unblock.countDown();
+
+        for (Future<byte[]> result : results) {
+            assertEquals("/tiles/1/2_3", new String(result.get(5, TimeUnit.SECONDS), "UTF-8"));
+        }
+        assertEquals(1, requests.get());
+        assertEquals(0, source.getDownloadCount());
+    }
+
+    @Test
+    public void connectionsPerHostAreCapped() throws Exception {
+        HttpTileSource source = newSource();
+        source.setMaxConnectionsPerHost(2);
+        delay = 100;
+
+        List<Future<byte[]>> results = new ArrayList<Future<byte[]>>();
+        for (int i = 0; i < 8; i++) {
+            results.add(fetchAsync(source, 0, i, 0));
+        }
+        for (Future<byte[]> result : results) {
+            assertNotNull(result.get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(8, requests.get());
+        assertTrue("max concurrent " + maxRunning.get(), maxRunning.get() <= 2);
+    }
+
+    @Test
+    public void cancelledTileAbortsDownload() throws Exception {
+        HttpTileSource source = newSource();
+        block = true;
+
+        Object request = new Object();
+        Future<byte[]> result = fetchAsync(source, 0, 1, 1, request);
+        Thread.sleep(300);
+        source.cancelTile(0, 1, 1, request);
+
+        try {
+            result.get(5, TimeUnit.SECONDS);
+            fail("expected the download to be cancelled");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof InterruptedIOException);
+        }
+        assertEquals(0, source.getDownloadCount());
+    }
+
+    @Test
+    public void cancelOnlyWithdrawsItsOwnRequest() throws Exception {
+        HttpTileSource source = newSource();
+        block = true;
+
+        Object first = new Object();
+        Object second = new Object();
+        Future<byte[]> firstResult = fetchAsync(source, 0, 2, 2, first);
+        Future<byte[]> secondResult = fetchAsync(source, 0, 2, 2, second);
+        Thread.sleep(300);
+        // never joined, e.g. a request still queued in the view
+        source.cancelTile(0, 2, 2, new Object());
+        source.cancelTile(0, 2, 2, first);
+        unblock.countDown();
+
+        assertEquals("/tiles/0/2_2", new String(secondResult.get(5, TimeUnit.SECONDS), "UTF-8"));
+        assertNotNull(firstResult.get(5, TimeUnit.SECONDS));
+        assertEquals(1, requests.get());
+    }
+
+    @Test
+    public void downloadsAreWrittenThroughToDiskCache() throws Exception {
+        HttpTileSource source = newSource();
+        DiskTileCache cache = new DiskTileCache(cacheDir, "remote");
+        source.setDiskCache(cache);
+
+        byte[] first = source.fetchTile(2, 0, 1);
+        assertTrue(cache.contains(2, 0, 1));
+
+        server.stop(0);
+        byte[] second = source.fetchTile(2, 0, 1);
+        assertArrayEquals(first, second);
+        assertEquals(1, requests.get());
+        source.close();
+    }
+
+    @Test
+    public void invalidatedTileIsDownloadedAgain() throws Exception {
+        HttpTileSource source = newSource();
+        DiskTileCache cache = new DiskTileCache(cacheDir, "remote");
+        source.setDiskCache(cache);
+        source.fetchTile(2, 0, 1);
+        source.fetchTile(2, 1, 1);
+
+        source.invalidateTile(2, 0, 1);
+        assertFalse(cache.contains(2, 0, 1));
+        assertTrue(cache.contains(2, 1, 1));
+        source.fetchTile(2, 0, 1);
+        source.fetchTile(2, 1, 1);
+        assertEquals(3, requests.get());
+        source.close();
+    }
+
+    @Test
+    public void tileInvalidatedWhileDownloadingIsNotCached() throws Exception {
+        HttpTileSource source = newSource();
+        DiskTileCache cache = new DiskTileCache(cacheDir, "remote");
+        source.setDiskCache(cache);
+        block = true;
+        Future<byte[]> old = fetchAsync(source, 2, 0, 1);
+        while (requests.get() < 1) {
+            Thread.sleep(10);
+        }
+
+        source.invalidateTile(2, 0, 1);
+        unblock.countDown();
+        assertNotNull(old.get(5, TimeUnit.SECONDS));
+        assertFalse(cache.contains(2, 0, 1));
+        source.fetchTile(2, 0, 1);
+        assertEquals(2, requests.get());
+        source.close();
+    }
+
+    @Test
+    public void diskCacheIndexSurvivesRestartWithoutClose() throws Exception {
+        HttpTileSource source = newSource();
+        DiskTileCache cache = new DiskTileCache(cacheDir, "remote", DiskTileCache.DEFAULT_MAX_BYTES, "v1");
+        source.setDiskCache(cache);
+        byte[] first = source.fetchTile(2, 0, 1);
+
+        // not closed, as when the process is killed
+        server.stop(0);
+        HttpTileSource restarted = newSource();
+        restarted.setDiskCache(new DiskTileCache(cacheDir, "remote", DiskTileCache.DEFAULT_MAX_BYTES, "v1"));
+        assertArrayEquals(first, restarted.fetchTile(2, 0, 1));
+        assertEquals(1, requests.get());
+        restarted.close();
+        cache.close();
+    }
+
+    @Test
+    public void removeKeepsTheSavedIndex() throws Exception {
+        DiskTileCache cache = new DiskTileCache(cacheDir, "remote", DiskTileCache.DEFAULT_MAX_BYTES, "v1");
+        cache.put(0, 0, 0, new byte[]{1, 2, 3});
+        cache.put(0, 1, 0, new byte[]{4, 5, 6});
+        cache.flush();
+
+        cache.remove(0, 0, 0);
+        assertTrue(new File(cacheDir, "remote.index").isFile());
+        cache.close();
+        DiskTileCache reopened = new DiskTileCache(cacheDir, "remote", DiskTileCache.DEFAULT_MAX_BYTES, "v1");
+        assertFalse(reopened.contains(0, 0, 0));
+        assertTrue(reopened.contains(0, 1, 0));
+        reopened.close();
+    }
+
+    @Test
+    public void diskCacheDropsStaleIndex() throws Exception {
+        DiskTileCache cache = new DiskTileCache(cacheDir, "remote", DiskTileCache.DEFAULT_MAX_BYTES, "v1");
+        cache.put(0, 0, 0, new byte[]{1, 2, 3});
+        cache.close();
+
+        DiskTileCache changed = new DiskTileCache(cacheDir, "remote", DiskTileCache.DEFAULT_MAX_BYTES, "v2");
+        assertFalse(changed.contains(0, 0, 0));
+        assertEquals(0, changed.size());
+        changed.put(0, 0, 0, new byte[]{1, 2, 3});
+        changed.close();
+
+        // data shorter than the index says, e.g. cut off by a full disk
+        RandomAccessFile data = new RandomAccessFile(new File(cacheDir, "remote.tiles"), "rw");
+        data.setLength(1);
+        data.close();
+        DiskTileCache truncated = new DiskTileCache(cacheDir, "remote", DiskTileCache.DEFAULT_MAX_BYTES, "v2");
+        assertFalse(truncated.contains(0, 0, 0));
+        truncated.close();
+    }
+
+    @Test
+    public void fileFingerprintFollowsSizeAndModificationTime() throws Exception {
+        assertTrue(cacheDir.mkdirs());
+        File image = new File(cacheDir, "image.jpg");
+        RandomAccessFile file = new RandomAccessFile(image, "rw");
+        file.setLength(100);
+        file.close();
+        assertTrue(image.setLastModified(1000000000L));
+        final String fingerprint = DiskTileCache.fingerprint(image);
+
+        DiskTileCache cache = new DiskTileCache(cacheDir, "image", DiskTileCache.DEFAULT_MAX_BYTES, fingerprint);
+        cache.put(0, 0, 0, new byte[]{1, 2, 3});
+        cache.close();
+        DiskTileCache reopened = new DiskTileCache(cacheDir, "image", DiskTileCache.DEFAULT_MAX_BYTES,
+                DiskTileCache.fingerprint(image));
+        assertTrue(reopened.contains(0, 0, 0));
+        reopened.close();
+
+        assertTrue(image.setLastModified(2000000000L));
+        assertFalse(fingerprint.equals(DiskTileCache.fingerprint(image)));
+        DiskTileCache edited = new DiskTileCache(cacheDir, "image", DiskTileCache.DEFAULT_MAX_BYTES,
+                DiskTileCache.fingerprint(image));
+        assertFalse(edited.contains(0, 0, 0));
+        edited.close();
+    }
+
+    @Test
+    public void missingTileIsNull() throws Exception {
+        HttpTileSource source = new HttpTileSource("http://127.0.0.1:" + server.getAddress().getPort()
+                + "/tiles/missing/{level}/{x}_{y}", 256, 256, 256, 1);
+        assertNull(source.fetchTile(0, 0, 0));
+    }
+
+}
@@ -0,0 +1,64 @@
+package minus.android.support.tilegen;
+
+/**
+ * Layout of a tile pyramid container. All values are big-endian.
+ *
+ * <pre>
+ * header      32 bytes   magic, version, width, height, tile size, level count, format, reserved
+ * level table  8 bytes   per level: columns, rows
+ * index       12 bytes   per tile: long offset, int length (0 = no tile)
+ * data                   encoded tiles
+ * </pre>
+ *
+ * The index lists level 0 first, and within a level tiles in row-major order, so the entry
+ * of any (level, column, row) is at a computable position and the tile is one seek away.
+ * Level 0 is full resolution, every further level halves both dimensions (rounding up)
+ * until the level fits into a single tile.
+ * <p>
+ * Keep in sync with {@code minus.android.support.view.tile.TileContainerSource}.
+ */
+public final class TileContainerFormat {
+
+    public static final int MAGIC = 0x5A565450; // "ZVTP"
+    public static final int VERSION = 1;
+
+    public static final int HEADER_SIZE = 32;
+    public static final int LEVEL_ENTRY_SIZE = 8;
+    public static final int INDEX_ENTRY_SIZE = 12;
+
+    public static final int FORMAT_JPEG = 0;
+    public static final int FORMAT_PNG = 1;
+
+    private TileContainerFormat() {
+    }
+
+    public static int levelCount(int width, int height, int tileSize) {
+        int levels = 1;
+        while (width > tileSize || height > tileSize) {
+            width = half(width);
+            height = half(height);
+            levels++;
+        }
+        return levels;
+    }
+
+    public static int levelSize(int size, int level) {
+        for (int i = 0; i < level; i++) {
+            size = half(size);
+        }
+        return size;
+    }
+
+    public static int tileCount(int levelSize, int tileSize) {
+        return (levelSize + tileSize - 1) / tileSize;
+    }
+
+    public static long indexOffset(int levelCount) {
+        return HEADER_SIZE + (long) LEVEL_ENTRY_SIZE * levelCount;
+    }
+
+    private static int half(int size) {
+        return (size + 1) / 2;
+    }
+
+}
@@ -0,0 +1,262 @@
+package minus.android.support.tilegen;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Slices an image into a multi-level tile pyramid and writes it as a single
+ * {@link TileContainerFormat container} file. Tiles of a level are encoded in parallel on a
+ * fork-join pool, then appended to the file in index order.
+ *
+ * <pre>
+ * java -jar tilegen.jar &lt;input image&gt; &lt;output file&gt; [tile size] [jpg|png] [jpeg quality]
+ * </pre>
+ */
+public class TilePyramidGenerator {
+
+    public static final int DEFAULT_TILE_SIZE = 256;
+    public static final float DEFAULT_QUALITY = 0.85f;
+
+    /**
+     * Tiles encoded by one leaf task.
+     */
+    private static final int TILES_PER_TASK = 4;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: TilePyramidGenerator <input image> <output file>"
+                    + " [tile size] [jpg|png] [jpeg quality]");
+            System.exit(1);
+        }
+
+        TilePyramidGenerator generator = new TilePyramidGenerator();
+        if (args.length > 2) {
+            generator.setTileSize(Integer.parseInt(args[2]));
+        }
+        if (args.length > 3) {
+            generator.setFormat(args[3]);
+        }
+        if (args.length > 4) {
+            generator.setQuality(Float.parseFloat(args[4]));
+        }
+
+        long start = System.currentTimeMillis();
+        generator.generate(new File(args[0]), new File(args[1]));
+        System.out.println("Wrote " + args[1] + " in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private int mTileSize = DEFAULT_TILE_SIZE;
+    private boolean mPng = false;
+    private float mQuality = DEFAULT_QUALITY;
+    private int mParallelism = Runtime.getRuntime().availableProcessors();
+
+    public void setTileSize(int tileSize) {
+        if (tileSize < 16)
+            throw new IllegalArgumentException("Tile size must be at least 16");
+        mTileSize = tileSize;
+    }
+
+    public void setFormat(String format) {
+        if ("png".equalsIgnoreCase(format)) {
+            mPng = true;
+        } else if ("jpg".equalsIgnoreCase(format) || "jpeg".equalsIgnoreCase(format)) {
+            mPng = false;
+        } else {
+            throw new IllegalArgumentException("Unsupported format: " + format);
+        }
+    }
+
+    public void setQuality(float quality) {
+        if (quality <= 0f || quality > 1f)
+            throw new IllegalArgumentException("Quality must be in (0, 1]");
+        mQuality = quality;
+    }
+
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("Parallelism must be positive");
+        mParallelism = parallelism;
+    }
+
+    public void generate(File input, File output) throws IOException {
+        BufferedImage image = ImageIO.read(input);
+        if (null == image) {
+            throw new IOException("Unsupported image: " + input);
+        }
+        generate(image, output);
+    }
+
+    public void generate(BufferedImage image, File output) throws IOException {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final int levelCount = TileContainerFormat.levelCount(width, height, mTileSize);
+
+        // index entry of the first tile of every level, plus the total at the end
+        final int[] firstTile = new int[levelCount + 1];
+        for (int level = 0; level < levelCount; level++) {
+            firstTile[level + 1] = firstTile[level]
+                    + TileContainerFormat.tileCount(TileContainerFormat.levelSize(width, level), mTileSize)
+                    * TileContainerFormat.tileCount(TileContainerFormat.levelSize(height, level), mTileSize);
+        }
+
+        final long indexOffset = TileContainerFormat.indexOffset(levelCount);
+        final ByteBuffer head = ByteBuffer.allocate(
+                (int) indexOffset + TileContainerFormat.INDEX_ENTRY_SIZE * firstTile[levelCount]);
+        head.putInt(TileContainerFormat.MAGIC);
+        head.putInt(TileContainerFormat.VERSION);
+        head.putInt(width);
+        head.putInt(height);
+        head.putInt(mTileSize);
+        head.putInt(levelCount);
+        head.putInt(mPng ? TileContainerFormat.FORMAT_PNG : TileContainerFormat.FORMAT_JPEG);
+        head.putInt(0);
+
+        RandomAccessFile file = new RandomAccessFile(output, "rw");
+        ForkJoinPool pool = new ForkJoinPool(mParallelism);
+        try {
+            file.setLength(0);
+            FileChannel channel = file.getChannel();
+            long dataOffset = head.capacity();
+            BufferedImage levelImage = mPng ? image : toRgb(image);
+
+            for (int level = 0; level < levelCount; level++) {
+                if (level > 0) {
+                    levelImage = halve(levelImage);
+                }
+                final int columns = TileContainerFormat.tileCount(levelImage.getWidth(), mTileSize);
+                final int rows = TileContainerFormat.tileCount(levelImage.getHeight(), mTileSize);
+                head.putInt(TileContainerFormat.HEADER_SIZE + TileContainerFormat.LEVEL_ENTRY_SIZE * level, columns);
+                head.putInt(TileContainerFormat.HEADER_SIZE + TileContainerFormat.LEVEL_ENTRY_SIZE * level + 4, rows);
+
+                final byte[][] tiles = new byte[columns * rows][];
+                pool.invoke(new EncodeTask(levelImage, columns, tiles, 0, tiles.length));
+
+                head.position((int) indexOffset + TileContainerFormat.INDEX_ENTRY_SIZE * firstTile[level]);
+                for (byte[] tile : tiles) {
+                    head.putLong(dataOffset);
+                    head.putInt(tile.length);
+                    channel.write(ByteBuffer.wrap(tile), dataOffset);
+                    dataOffset += tile.length;
+                }
+            }
+
+            head.clear();
+            channel.write(head, 0);
+        } finally {
+            pool.shutdown();
+            file.close();
+        }
+    }
+
+    private static BufferedImage toRgb(BufferedImage image) {
+        if (image.getType() == BufferedImage.TYPE_INT_RGB) {
+            return image;
+        }
+        BufferedImage rgb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = rgb.createGraphics();
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+        return rgb;
+    }
+
+    private static BufferedImage halve(BufferedImage image) {
+        final int width = (image.getWidth() + 1) / 2;
+        final int height = (image.getHeight() + 1) / 2;
+        final int type = image.getType() == BufferedImage.TYPE_CUSTOM
+                ? BufferedImage.TYPE_INT_ARGB : image.getType();
+        BufferedImage half = new BufferedImage(width, height, type);
+        Graphics2D g = half.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+        g.drawImage(image, 0, 0, width, height, null);
+        g.dispose();
+        return half;
+    }
+
+    private byte[] encodeTile(BufferedImage level, int column, int row) throws IOException {
+        final int x = column * mTileSize;
+        final int y = row * mTileSize;
+        final int w = Math.min(mTileSize, level.getWidth() - x);
+        final int h = Math.min(mTileSize, level.getHeight() - y);
+
+        // copy, some writers mishandle sub-images sharing a larger raster
+        BufferedImage tile = new BufferedImage(w, h, level.getType() == BufferedImage.TYPE_CUSTOM
+                ? BufferedImage.TYPE_INT_ARGB : level.getType());
+        Graphics2D g = tile.createGraphics();
+        g.drawImage(level, -x, -y, null);
+        g.dispose();
+
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(mPng ? "png" : "jpeg");
+        if (!writers.hasNext()) {
+            throw new IOException("No image writer available");
+        }
+        ImageWriter writer = writers.next();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ImageOutputStream out = ImageIO.createImageOutputStream(bytes);
+        try {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (!mPng) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(mQuality);
+            }
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(tile, null, null), param);
+        } finally {
+            writer.dispose();
+            out.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    private class EncodeTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final BufferedImage mLevel;
+        private final int mColumns;
+        private final byte[][] mTiles;
+        private final int mStart, mEnd;
+
+        EncodeTask(BufferedImage level, int columns, byte[][] tiles, int start, int end) {
+            mLevel = level;
+            mColumns = columns;
+            mTiles = tiles;
+            mStart = start;
+            mEnd = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (mEnd - mStart <= TILES_PER_TASK) {
+                for (int i = mStart; i < mEnd; i++) {
+                    try {
+                        mTiles[i] = encodeTile(mLevel, i % mColumns, i / mColumns);
+                    } catch (IOException e) {
+                        throw new IllegalStateException("Unable to encode tile " + i, e);
+                    }
+                }
+                return;
+            }
+            final int mid = (mStart + mEnd) >>> 1;
+            invokeAll(new EncodeTask(mLevel, mColumns, mTiles, mStart, mid),
+                    new EncodeTask(mLevel, mColumns, mTiles, mid, mEnd));
+        }
+    }
+
+}